@@ -0,0 +1,105 @@
+package com.speed.irc.connection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * An output stream which writes to a non-blocking socket channel. Bytes that
+ * cannot be written straight away are kept until the channel becomes writable
+ * again, at which point the reader of the connection finishes writing them.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class ChannelOutputStream extends OutputStream {
+    private final SocketChannel channel;
+    private final ServerMessageReader reader;
+    private ByteBuffer pending = ByteBuffer.allocate(4096);
+
+    public ChannelOutputStream(final SocketChannel channel, final ServerMessageReader reader) {
+        this.channel = channel;
+        this.reader = reader;
+    }
+
+    @Override
+    public synchronized void write(final int b) throws IOException {
+        ensureCapacity(1);
+        pending.put((byte) b);
+    }
+
+    @Override
+    public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+        ensureCapacity(len);
+        pending.put(b, off, len);
+    }
+
+    /**
+     * Writes as much of the pending output as the channel will accept without
+     * blocking. If some of it is left over the reader is asked to finish
+     * writing it once the channel is writable.
+     *
+     * @throws IOException if the channel could not be written to
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!writePending()) {
+            reader.requestWrite();
+        }
+    }
+
+    /**
+     * Writes as much of the pending output as the channel will accept without
+     * blocking.
+     *
+     * @return <tt>true</tt> if all pending output was written, <tt>false</tt>
+     * otherwise
+     * @throws IOException if the channel could not be written to
+     */
+    protected synchronized boolean writePending() throws IOException {
+        pending.flip();
+        try {
+            while (pending.hasRemaining()) {
+                if (channel.write(pending) == 0) {
+                    break;
+                }
+            }
+            return !pending.hasRemaining();
+        } finally {
+            pending.compact();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void ensureCapacity(final int len) {
+        if (pending.remaining() < len) {
+            int size = pending.capacity();
+            while (size - pending.position() < len) {
+                size <<= 1;
+            }
+            final ByteBuffer grown = ByteBuffer.allocate(size);
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.speed.irc.connection;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multiplexes many server connections over a single selector thread and a
+ * shared, fixed size pool of worker threads. Lines read from a connection are
+ * parsed in order on the worker pool, and the pool is also used for the timed
+ * tasks of each server, such as flushing output and dispatching events.
+ * <p/>
+ * Servers created without a connection manager get one of their own, which is
+ * shut down when the server quits.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class ConnectionManager implements Runnable {
+    private static final AtomicInteger MANAGER_COUNT = new AtomicInteger();
+    private final Selector selector;
+    private final ScheduledThreadPoolExecutor workers;
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+    private final Thread selectorThread;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a connection manager with a worker thread for each available
+     * processor, and at least four.
+     *
+     * @throws IOException if the selector could not be opened
+     */
+    public ConnectionManager() throws IOException {
+        this(Math.max(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Creates a connection manager.
+     *
+     * @param workerThreads the number of threads shared by the connections of
+     *                      this manager
+     * @throws IOException if the selector could not be opened
+     */
+    public ConnectionManager(final int workerThreads) throws IOException {
+        final int id = MANAGER_COUNT.incrementAndGet();
+        selector = Selector.open();
+        workers = new ScheduledThreadPoolExecutor(workerThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                return new Thread(r, "Connection manager " + id + " worker " + count.incrementAndGet());
+            }
+        });
+        workers.setRemoveOnCancelPolicy(true);
+        selectorThread = new Thread(this, "Connection manager " + id + " selector");
+        selectorThread.start();
+    }
+
+    /**
+     * Gets the worker pool shared by the connections of this manager.
+     *
+     * @return the shared worker pool
+     */
+    public ScheduledThreadPoolExecutor getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Starts reading from a connection. Channel backed connections are read by
+     * the selector thread, other connections are given a thread of their own.
+     *
+     * @param reader the reader of the connection
+     */
+    protected void register(final ServerMessageReader reader) {
+        final SocketChannel channel = reader.getChannel();
+        if (channel == null) {
+            new Thread(reader, "Server message reader").start();
+            return;
+        }
+        submit(new Runnable() {
+            public void run() {
+                try {
+                    channel.configureBlocking(false);
+                    reader.setKey(channel.register(selector, SelectionKey.OP_READ, reader));
+                } catch (ClosedChannelException e) {
+                    reader.closed();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    reader.closed();
+                }
+            }
+        });
+    }
+
+    /**
+     * Changes the operations the selector waits for on a connection.
+     *
+     * @param key the key of the connection
+     * @param ops the new interest set
+     */
+    protected void setInterest(final SelectionKey key, final int ops) {
+        submit(new Runnable() {
+            public void run() {
+                if (key.isValid()) {
+                    key.interestOps(ops);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops reading from a connection.
+     *
+     * @param key the key of the connection
+     */
+    protected void cancel(final SelectionKey key) {
+        submit(new Runnable() {
+            public void run() {
+                key.cancel();
+            }
+        });
+    }
+
+    private void submit(final Runnable task) {
+        pending.offer(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Stops the selector thread and the worker pool. Connections which are
+     * still open are not closed.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Checks whether this manager has been shut down.
+     *
+     * @return <tt>true</tt> if the manager has been shut down
+     */
+    public boolean isShutdown() {
+        return !running;
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                Runnable task;
+                while ((task = pending.poll()) != null) {
+                    task.run();
+                }
+                selector.select();
+                final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    final ServerMessageReader reader = (ServerMessageReader) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            reader.writable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            reader.readable();
+                        }
+                    } catch (CancelledKeyException e) {
+                        reader.closed();
+                    } catch (IOException e) {
+                        key.cancel();
+                        reader.closed();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.speed.irc.connection;
+
+import com.speed.irc.types.CTCPReply;
+import com.speed.irc.util.TokenBucket;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the automatic replies to CTCP requests. The request of each
+ * {@link CTCPReply} is a case insensitive pattern, which is compiled once when
+ * the reply is added. Replies are kept by the CTCP command their pattern
+ * starts with, e.g. <tt>PING</tt> for <tt>PING (.*)</tt>, so a request is only
+ * matched against the patterns for its command, and only patterns that don't
+ * start with a command are tried for every request.
+ * <p/>
+ * A reply may contain <tt>$1</tt> to <tt>$9</tt>, which are replaced by the
+ * groups of the pattern, and <tt>\$</tt> for a dollar sign. Replies are parsed
+ * once and parsed again only if the reply changes.
+ * <p/>
+ * Replies are found without locking, and are rate limited for each reply as
+ * well as in total, so a flood of requests can't fill the queue of lines sent
+ * to the server. The rate limits are kept with the replies rather than with
+ * the commands requested, so requests for unknown commands don't add to them.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class CtcpRouter {
+    private static final Route[] NONE = new Route[0];
+    private static final Pattern COMMAND = Pattern.compile("([A-Za-z0-9_-]+)(?: .*)?", Pattern.DOTALL);
+
+    private volatile Map<String, Route[]> commands = Collections.emptyMap();
+    private volatile Route[] wildcards = NONE;
+    private final List<Route> routes = new ArrayList<Route>();
+
+    private final Map<String, double[]> rates = new HashMap<String, double[]>();
+    private double defaultRate = 1, defaultBurst = 3;
+    private final TokenBucket total = new TokenBucket(2, 5);
+    private final AtomicLong limited = new AtomicLong();
+
+    /**
+     * Adds a reply, unless an equal reply has already been added.
+     *
+     * @param reply the reply to add
+     */
+    public synchronized void add(final CTCPReply reply) {
+        for (Route route : routes) {
+            if (route.reply.equals(reply)) {
+                return;
+            }
+        }
+        final Route route = new Route(reply);
+        final double[] rate = route.command == null ? null : rates.get(route.command);
+        route.bucket.setRate(rate == null ? defaultRate : rate[0], rate == null ? defaultBurst : rate[1]);
+        routes.add(route);
+        publish();
+    }
+
+    /**
+     * Removes a reply.
+     *
+     * @param reply the reply to remove
+     * @return <tt>true</tt> if the reply was removed
+     */
+    public synchronized boolean remove(final CTCPReply reply) {
+        for (Iterator<Route> it = routes.iterator(); it.hasNext(); ) {
+            if (it.next().reply.equals(reply)) {
+                it.remove();
+                publish();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the reply with a request.
+     *
+     * @param request the request of the reply, e.g. <tt>PING (.*)</tt>
+     * @return the reply, or <tt>null</tt> if there is none
+     */
+    public synchronized CTCPReply get(final String request) {
+        for (Route route : routes) {
+            if (route.reply.getRequest().equals(request)) {
+                return route.reply;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rebuilds the routes read by {@link #getReply(String)}, in the order the
+     * replies were added.
+     */
+    private void publish() {
+        final Map<String, List<Route>> lists = new HashMap<String, List<Route>>();
+        final List<Route> others = new ArrayList<Route>();
+        for (Route route : routes) {
+            if (route.command == null) {
+                others.add(route);
+            } else {
+                List<Route> list = lists.get(route.command);
+                if (list == null) {
+                    list = new ArrayList<Route>(1);
+                    lists.put(route.command, list);
+                }
+                list.add(route);
+            }
+        }
+        final Map<String, Route[]> map = new HashMap<String, Route[]>(lists.size() * 2);
+        for (Map.Entry<String, List<Route>> entry : lists.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().toArray(new Route[entry.getValue().size()]));
+        }
+        commands = map;
+        wildcards = others.toArray(new Route[others.size()]);
+    }
+
+    /**
+     * Gets the reply to a CTCP request, without rate limiting it.
+     *
+     * @param request the request, without the CTCP delimiters around it,
+     *                e.g. <tt>PING 12345</tt>
+     * @return the reply, or <tt>null</tt> if no reply matches the request
+     */
+    public String getReply(final String request) {
+        return reply(request, false);
+    }
+
+    /**
+     * Gets the reply to a CTCP request, if neither the rate limit of the
+     * reply nor the total rate limit has been reached.
+     *
+     * @param request the request, without the CTCP delimiters around it
+     * @return the reply, or <tt>null</tt> if no reply matches the request or
+     * the request was rate limited
+     */
+    public String reply(final String request) {
+        return reply(request, true);
+    }
+
+    private String reply(final String request, final boolean limit) {
+        final Route[] keyed = commands.get(commandOf(request));
+        if (keyed != null) {
+            for (Route route : keyed) {
+                final String reply = route.reply(request);
+                if (reply != null) {
+                    return limit ? limit(route, reply) : reply;
+                }
+            }
+        }
+        for (Route route : wildcards) {
+            final String reply = route.reply(request);
+            if (reply != null) {
+                return limit ? limit(route, reply) : reply;
+            }
+        }
+        return null;
+    }
+
+    private String limit(final Route route, final String reply) {
+        if (!route.bucket.tryAcquire(1) || !total.tryAcquire(1)) {
+            limited.incrementAndGet();
+            return null;
+        }
+        return reply;
+    }
+
+    /**
+     * Sets how often the replies to a CTCP command may be sent. The rate is
+     * used by the replies whose pattern starts with the command, e.g.
+     * <tt>VERSION</tt> or <tt>PING (.*)</tt>, and each of those replies is
+     * limited separately.
+     *
+     * @param command   the command, e.g. <tt>VERSION</tt>
+     * @param perSecond the number of replies each second, <tt>0</tt> for no
+     *                  limit
+     * @param burst     the most replies that may be sent at once
+     */
+    public synchronized void setRate(final String command, final double perSecond, final double burst) {
+        final String key = command.toUpperCase(Locale.ENGLISH);
+        rates.put(key, new double[]{perSecond, burst});
+        for (Route route : routes) {
+            if (key.equals(route.command)) {
+                route.bucket.setRate(perSecond, burst);
+            }
+        }
+    }
+
+    /**
+     * Sets how often each reply without a rate of its own may be sent. By
+     * default each reply may be sent three times at once, and then once each
+     * second.
+     *
+     * @param perSecond the number of replies each second, <tt>0</tt> for no
+     *                  limit
+     * @param burst     the most replies that may be sent at once
+     */
+    public synchronized void setDefaultRate(final double perSecond, final double burst) {
+        defaultRate = perSecond;
+        defaultBurst = burst;
+        for (Route route : routes) {
+            if (route.command == null || !rates.containsKey(route.command)) {
+                route.bucket.setRate(perSecond, burst);
+            }
+        }
+    }
+
+    /**
+     * Sets how often CTCP requests may be replied to, whatever their
+     * command. By default five replies may be sent at once, and then two each
+     * second.
+     *
+     * @param perSecond the number of replies each second, <tt>0</tt> for no
+     *                  limit
+     * @param burst     the most replies that may be sent at once
+     */
+    public void setTotalRate(final double perSecond, final double burst) {
+        total.setRate(perSecond, burst);
+    }
+
+    /**
+     * Gets the number of replies that weren't sent because of the rate limits.
+     *
+     * @return the number of replies not sent
+     */
+    public long getLimitedCount() {
+        return limited.get();
+    }
+
+    /**
+     * Gets the command of a request, the first word in upper case.
+     *
+     * @param request the request, e.g. <tt>ping 12345</tt>
+     * @return the command, e.g. <tt>PING</tt>
+     */
+    private static String commandOf(final String request) {
+        final int space = request.indexOf(' ');
+        return (space < 0 ? request : request.substring(0, space)).toUpperCase(Locale.ENGLISH);
+    }
+
+    /**
+     * A reply with its compiled pattern and rate limit.
+     */
+    private static final class Route {
+        private final CTCPReply reply;
+        private final Pattern pattern;
+        private final String command;
+        // the rate is set when the route is added
+        private final TokenBucket bucket = new TokenBucket(0, 0);
+        private volatile Template template;
+
+        private Route(final CTCPReply reply) {
+            this.reply = reply;
+            this.pattern = Pattern.compile(reply.getRequest(), Pattern.CASE_INSENSITIVE);
+            // a pattern with alternatives may match other commands too
+            final Matcher matcher = COMMAND.matcher(reply.getRequest());
+            this.command = matcher.matches() && reply.getRequest().indexOf('|') < 0
+                    ? matcher.group(1).toUpperCase(Locale.ENGLISH) : null;
+        }
+
+        private String reply(final String request) {
+            final Matcher matcher = pattern.matcher(request);
+            if (!matcher.matches()) {
+                return null;
+            }
+            final String s = reply.getReply();
+            if (matcher.groupCount() == 0 || s == null) {
+                return s;
+            }
+            Template t = template;
+            if (t == null || !t.source.equals(s)) {
+                t = new Template(s);
+                template = t;
+            }
+            return t.apply(matcher);
+        }
+    }
+
+    /**
+     * A reply split into text and the numbers of the groups put between it.
+     */
+    private static final class Template {
+        private final String source;
+        private final String[] text;
+        private final int[] groups;
+
+        private Template(final String source) {
+            this.source = source;
+            final List<String> text = new ArrayList<String>();
+            final List<Integer> groups = new ArrayList<Integer>();
+            final StringBuilder builder = new StringBuilder(source.length());
+            for (int i = 0; i < source.length(); i++) {
+                final char c = source.charAt(i);
+                if (c == '\\' && i + 1 < source.length() && source.charAt(i + 1) == '$') {
+                    builder.append('$');
+                    i++;
+                } else if (c == '$' && i + 1 < source.length() && Character.isDigit(source.charAt(i + 1))) {
+                    text.add(builder.toString());
+                    builder.setLength(0);
+                    groups.add(source.charAt(++i) - '0');
+                } else {
+                    builder.append(c);
+                }
+            }
+            text.add(builder.toString());
+            this.text = text.toArray(new String[text.size()]);
+            this.groups = new int[groups.size()];
+            for (int i = 0; i < this.groups.length; i++) {
+                this.groups[i] = groups.get(i);
+            }
+        }
+
+        private String apply(final Matcher matcher) {
+            final StringBuilder builder = new StringBuilder(source.length() + 16);
+            builder.append(text[0]);
+            for (int i = 0; i < groups.length; i++) {
+                if (groups[i] <= matcher.groupCount() && matcher.group(groups[i]) != null) {
+                    builder.append(matcher.group(groups[i]));
+                }
+                builder.append(text[i + 1]);
+            }
+            return builder.toString();
+        }
+    }
+}
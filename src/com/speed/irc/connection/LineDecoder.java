@@ -0,0 +1,116 @@
+package com.speed.irc.connection;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Frames the bytes read from a server connection into lines. Lines may be
+ * terminated by either CRLF or a bare LF, and partial lines are kept until the
+ * rest of the line has been read.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class LineDecoder {
+    /**
+     * The longest line that will be buffered, IRCv3 allows 8191 bytes of tags
+     * plus the 512 bytes of the message itself.
+     */
+    public static final int MAX_LINE_LENGTH = 8191 + 512;
+
+    private final Charset charset;
+    private byte[] buffer = new byte[1024];
+    private int start, end, scanned;
+    private boolean discarding;
+
+    public LineDecoder(final Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Appends the remaining bytes of the supplied buffer to this decoder.
+     *
+     * @param src the buffer to read from, in read mode
+     */
+    public void feed(final ByteBuffer src) {
+        final int len = src.remaining();
+        if (end + len > buffer.length) {
+            compact();
+            if (end + len > buffer.length) {
+                int size = buffer.length;
+                while (size < end + len) {
+                    size <<= 1;
+                }
+                final byte[] grown = new byte[size];
+                System.arraycopy(buffer, 0, grown, 0, end);
+                buffer = grown;
+            }
+        }
+        src.get(buffer, end, len);
+        end += len;
+    }
+
+    /**
+     * Gets the next complete line, without the line terminator.
+     *
+     * @return the next line, or <tt>null</tt> if no complete line has been
+     * read yet
+     */
+    public String nextLine() {
+        while (true) {
+            int nl = -1;
+            for (int i = scanned; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    nl = i;
+                    break;
+                }
+            }
+            if (nl < 0) {
+                scanned = end;
+                if (end - start > MAX_LINE_LENGTH) {
+                    // the server is misbehaving, drop what we have of this line
+                    discarding = true;
+                    start = scanned = end;
+                }
+                return null;
+            }
+            int lineEnd = nl;
+            if (lineEnd > start && buffer[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            final int lineStart = start;
+            start = scanned = nl + 1;
+            if (discarding) {
+                discarding = false;
+                continue;
+            }
+            if (lineEnd == lineStart) {
+                continue;
+            }
+            return new String(buffer, lineStart, lineEnd - lineStart, charset);
+        }
+    }
+
+    private void compact() {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            scanned -= start;
+            start = 0;
+        }
+    }
+}
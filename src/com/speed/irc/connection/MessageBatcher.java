@@ -0,0 +1,228 @@
+package com.speed.irc.connection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Combines messages and notices with the same text sent to several targets
+ * into a single line, e.g. <tt>PRIVMSG #a,#b,#c :text</tt>. Messages are held
+ * for a short window so that the same text sent to other targets can join
+ * them, up to the number of targets the server allows in its TARGMAX or
+ * MAXTARGETS settings and the length limit of a line.
+ * <p/>
+ * Messages are sent in the order they were given to the batcher. If the server
+ * doesn't allow more than one target, messages are sent straight away.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class MessageBatcher implements Runnable {
+    /**
+     * The longest line a server will relay, without the CRLF.
+     */
+    public static final int MAX_LINE_LENGTH = 510;
+
+    private final Server server;
+    private final ScheduledExecutorService executor;
+    private final Map<String, Batch> batches = new LinkedHashMap<String, Batch>();
+    private final Map<String, Batch> latest = new HashMap<String, Batch>();
+    private long sequence;
+    private volatile long window = 50;
+    private boolean scheduled;
+
+    public MessageBatcher(final Server server, final ScheduledExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    /**
+     * Sets how long messages are held for other targets to join them. By
+     * default messages are held for 50 milliseconds.
+     *
+     * @param window the time to hold messages for in milliseconds, <tt>0</tt>
+     *               to send messages straight away
+     */
+    public void setWindow(final long window) {
+        this.window = window;
+        if (window <= 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Gets how long messages are held for other targets to join them.
+     *
+     * @return the time messages are held for in milliseconds
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Sends a message, after holding it for other targets to join.
+     *
+     * @param command the command, <tt>PRIVMSG</tt> or <tt>NOTICE</tt>
+     * @param target  the channel or nick the message is sent to
+     * @param text    the text of the message
+     */
+    public void add(final String command, final String target, final String text) {
+        final int maxTargets = server.getParser().getServerSupport().getMaxTargets(command);
+        if (window <= 0 || maxTargets <= 1) {
+            synchronized (this) {
+                flushBatches(null);
+                server.sendRaw(command + " " + target + " :" + text);
+            }
+            return;
+        }
+        synchronized (this) {
+            final String key = command + " :" + text;
+            Batch batch = batches.get(key);
+            final Batch previous = latest.get(server.fold(target));
+            if (batch != null && previous != null && previous.sequence >= batch.sequence) {
+                // the target has a message waiting which must be sent first
+                flushBatches(previous);
+                batch = null;
+            } else if (batch != null && !batch.fits(target, maxTargets)) {
+                flushBatches(batch);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch(command, text, sequence++);
+                batches.put(key, batch);
+            }
+            batch.add(target);
+            latest.put(server.fold(target), batch);
+            if (!batch.fits(null, maxTargets)) {
+                flushBatches(batch);
+            } else if (!scheduled) {
+                scheduled = true;
+                try {
+                    executor.schedule(this, window, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    scheduled = false;
+                    flushBatches(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends every message being held straight away.
+     */
+    public synchronized void flush() {
+        flushBatches(null);
+    }
+
+    public void run() {
+        synchronized (this) {
+            scheduled = false;
+            flushBatches(null);
+        }
+    }
+
+    /**
+     * Sends the messages being held, in order, up to and including a batch.
+     *
+     * @param last the last batch to send, or <tt>null</tt> to send them all
+     */
+    private void flushBatches(final Batch last) {
+        final Iterator<Batch> it = batches.values().iterator();
+        while (it.hasNext()) {
+            final Batch batch = it.next();
+            it.remove();
+            for (String target : batch.targets) {
+                final String key = server.fold(target);
+                if (latest.get(key) == batch) {
+                    latest.remove(key);
+                }
+            }
+            server.sendRaw(batch.toLine());
+            if (batch == last) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the length of the prefix the server adds when relaying a line from
+     * us, <tt>:nick!user@host </tt>, allowing for the longest host.
+     *
+     * @return the length of the prefix
+     */
+    private int getPrefixLength() {
+        final String nick = server.getNick();
+        final String user = server.getUser();
+        return 4 + (nick == null ? 30 : nick.length()) + (user == null ? 10 : user.length()) + 63;
+    }
+
+    /**
+     * The targets a message is being held for.
+     */
+    private final class Batch {
+        private final String command;
+        private final String text;
+        private final List<String> targets = new ArrayList<String>();
+        private final long sequence;
+        private int length;
+
+        private Batch(final String command, final String text, final long sequence) {
+            this.command = command;
+            this.text = text;
+            this.sequence = sequence;
+            this.length = command.length() + 3 + text.length() - 1;
+        }
+
+        private void add(final String target) {
+            targets.add(target);
+            length += target.length() + 1;
+        }
+
+        /**
+         * Checks whether the batch has room for another target.
+         *
+         * @param target     the target to add, or <tt>null</tt> to check for a
+         *                   target of any length
+         * @param maxTargets the most targets a line may have
+         * @return <tt>true</tt> if there is room for the target
+         */
+        private boolean fits(final String target, final int maxTargets) {
+            if (targets.size() >= maxTargets) {
+                return false;
+            }
+            return target == null || getPrefixLength() + length + target.length() + 1 <= MAX_LINE_LENGTH;
+        }
+
+        private String toLine() {
+            final StringBuilder builder = new StringBuilder(length + 2);
+            builder.append(command).append(' ');
+            for (int i = 0; i < targets.size(); i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(targets.get(i));
+            }
+            return builder.append(" :").append(text).toString();
+        }
+    }
+}
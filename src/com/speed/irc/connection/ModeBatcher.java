@@ -0,0 +1,266 @@
+package com.speed.irc.connection;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Combines the mode changes made to a channel into as few MODE commands as
+ * the server allows. Changes are held for a short window, or until they are
+ * committed, and then sent with up to the number of parameters the server
+ * allows in its MODES setting on each line, e.g.
+ * <tt>MODE #channel +vvvv-b nick1 nick2 nick3 nick4 mask</tt>.
+ * <p/>
+ * Whether a mode has a parameter is worked out from the PREFIX and CHANMODES
+ * settings of the server. Changes to a channel are sent in the order they were
+ * made.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class ModeBatcher implements Runnable {
+    /**
+     * The longest MODE line that is sent, leaving room for the prefix the
+     * server adds when relaying it.
+     */
+    public static final int MAX_LINE_LENGTH = 400;
+
+    private final Server server;
+    private final ScheduledExecutorService executor;
+    private final Map<String, Batch> pending = new LinkedHashMap<String, Batch>();
+    private volatile long window = 50;
+    private boolean scheduled;
+
+    public ModeBatcher(final Server server, final ScheduledExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    /**
+     * Sets how long mode changes are held for before they are sent. By
+     * default changes are held for 50 milliseconds.
+     *
+     * @param window the time to hold changes for in milliseconds, <tt>0</tt>
+     *               to send changes straight away
+     */
+    public void setWindow(final long window) {
+        this.window = window;
+        if (window <= 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Gets how long mode changes are held for before they are sent.
+     *
+     * @return the time changes are held for in milliseconds
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Adds a mode string, such as <tt>+vv-o</tt>, and its parameters to the
+     * changes waiting to be sent to a channel. If a mode is missing its
+     * parameter, e.g. <tt>+b</tt> to list the bans of the channel, the changes
+     * waiting are sent along with the mode string straight away.
+     *
+     * @param channel the name of the channel
+     * @param modes   the modes to change
+     * @param args    the parameters of the modes
+     */
+    public void add(final String channel, final String modes, final String... args) {
+        final List<Change> changes = new ArrayList<Change>();
+        boolean plus = true;
+        int arg = 0;
+        for (int i = 0; i < modes.length(); i++) {
+            final char c = modes.charAt(i);
+            if (c == '+' || c == '-') {
+                plus = c == '+';
+                continue;
+            }
+            String param = null;
+            if (server.hasModeParameter(c, plus)) {
+                if (arg >= args.length) {
+                    sendNow(channel, modes, args);
+                    return;
+                }
+                param = args[arg++];
+            }
+            changes.add(new Change(plus, c, param));
+        }
+        if (changes.isEmpty()) {
+            sendNow(channel, modes, args);
+            return;
+        }
+        synchronized (this) {
+            final String key = server.fold(channel);
+            Batch batch = pending.get(key);
+            if (batch == null) {
+                batch = new Batch(channel);
+                pending.put(key, batch);
+            }
+            batch.changes.addAll(changes);
+            if (window <= 0) {
+                flush(channel);
+            } else if (!scheduled) {
+                scheduled = true;
+                try {
+                    executor.schedule(this, window, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    scheduled = false;
+                    flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a single mode change to the changes waiting to be sent to a
+     * channel.
+     *
+     * @param channel the name of the channel
+     * @param plus    <tt>true</tt> to set the mode, <tt>false</tt> to remove it
+     * @param mode    the mode letter
+     * @param param   the parameter of the mode, or <tt>null</tt> if it has none
+     */
+    public void add(final String channel, final boolean plus, final char mode, final String param) {
+        if (param == null) {
+            add(channel, (plus ? "+" : "-") + mode);
+        } else {
+            add(channel, (plus ? "+" : "-") + mode, param);
+        }
+    }
+
+    private void sendNow(final String channel, final String modes, final String... args) {
+        final StringBuilder line = new StringBuilder("MODE ").append(channel).append(' ').append(modes);
+        for (String arg : args) {
+            line.append(' ').append(arg);
+        }
+        synchronized (this) {
+            flush(channel);
+            server.sendRaw(line.toString());
+        }
+    }
+
+    /**
+     * Gets the number of mode changes waiting to be sent to a channel.
+     *
+     * @param channel the name of the channel
+     * @return the number of changes waiting
+     */
+    public synchronized int getPendingCount(final String channel) {
+        final Batch batch = pending.get(server.fold(channel));
+        return batch == null ? 0 : batch.changes.size();
+    }
+
+    /**
+     * Sends the mode changes waiting to be sent to a channel straight away.
+     *
+     * @param channel the name of the channel
+     */
+    public synchronized void flush(final String channel) {
+        final Batch batch = pending.remove(server.fold(channel));
+        if (batch != null) {
+            send(batch.channel, batch.changes);
+        }
+    }
+
+    /**
+     * Sends every mode change waiting to be sent straight away.
+     */
+    public synchronized void flush() {
+        final Iterator<Batch> it = pending.values().iterator();
+        while (it.hasNext()) {
+            final Batch batch = it.next();
+            it.remove();
+            send(batch.channel, batch.changes);
+        }
+    }
+
+    public void run() {
+        synchronized (this) {
+            scheduled = false;
+            flush();
+        }
+    }
+
+    private void send(final String channel, final List<Change> changes) {
+        final int maxModes = server.getParser().getServerSupport().getMaxModes();
+        final String start = "MODE " + channel + " ";
+        final StringBuilder modes = new StringBuilder();
+        final StringBuilder params = new StringBuilder();
+        int count = 0;
+        Boolean sign = null;
+        for (Change change : changes) {
+            final int extra = 2 + (change.param == null ? 0 : change.param.length() + 1);
+            if (modes.length() > 0 && ((change.param != null && count >= maxModes)
+                    || start.length() + modes.length() + params.length() + extra > MAX_LINE_LENGTH)) {
+                server.sendRaw(start + modes + params);
+                modes.setLength(0);
+                params.setLength(0);
+                count = 0;
+                sign = null;
+            }
+            if (sign == null || sign != change.plus) {
+                sign = change.plus;
+                modes.append(change.plus ? '+' : '-');
+            }
+            modes.append(change.mode);
+            if (change.param != null) {
+                params.append(' ').append(change.param);
+                count++;
+            }
+        }
+        if (modes.length() > 0) {
+            server.sendRaw(start + modes + params);
+        }
+    }
+
+    /**
+     * The mode changes waiting to be sent to a channel, along with the name of
+     * the channel as it was first given.
+     */
+    private static final class Batch {
+        private final String channel;
+        private final List<Change> changes = new ArrayList<Change>();
+
+        private Batch(final String channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * A single mode change.
+     */
+    private static final class Change {
+        private final boolean plus;
+        private final char mode;
+        private final String param;
+
+        private Change(final boolean plus, final char mode, final String param) {
+            this.plus = plus;
+            this.mode = mode;
+            this.param = param;
+        }
+    }
+}
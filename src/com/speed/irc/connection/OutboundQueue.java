@@ -0,0 +1,529 @@
+package com.speed.irc.connection;
+
+import com.speed.irc.util.TokenBucket;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues the lines sent to a server so that the server isn't flooded. Lines
+ * are written straight away while the token buckets allow it, and the rest
+ * are written as tokens become available, highest priority first.
+ * <p/>
+ * Within a priority, the targets of the lines (the channel or nick they are
+ * sent to) take turns, so a target with many lines waiting doesn't hold up the
+ * others. Each turn a target may send as many lines as its weight. Critical
+ * lines are never queued, they are written straight away and their tokens are
+ * taken out of the buckets afterwards.
+ * <p/>
+ * Like the flood control of most ircds, each line costs one token plus one for
+ * every 120 bytes, so long lines are sent more slowly than short ones. A
+ * second bucket can limit the bytes sent each second.
+ * <p/>
+ * A low priority line that is already waiting to be sent to the same target
+ * isn't queued again, since the server would send back the same reply, so
+ * periodic queries such as the WHO of each channel can't pile up behind other
+ * lines. Each priority can also be given a capacity, past which new lines are
+ * dropped; by default only low priority lines are limited.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class OutboundQueue implements Runnable {
+
+    /**
+     * The priorities of lines waiting to be sent, highest first.
+     */
+    public enum Priority {
+        /**
+         * Lines the connection depends on: PONG, PASS, NICK, USER, QUIT and CAP.
+         * These are written straight away, without waiting for tokens.
+         */
+        CRITICAL,
+        /**
+         * Channel management: MODE, KICK, JOIN, PART, TOPIC and INVITE.
+         */
+        HIGH,
+        /**
+         * Messages, notices and anything else.
+         */
+        NORMAL,
+        /**
+         * Bulk queries: WHO, WHOIS, NAMES and LIST.
+         */
+        LOW;
+
+        /**
+         * Gets the priority of a line from its command.
+         *
+         * @param line the line to be sent
+         * @return the priority of the line
+         */
+        public static Priority of(final String line) {
+            int end = line.indexOf(' ');
+            if (end < 0) {
+                end = line.length();
+            }
+            final String command = line.substring(0, end).toUpperCase();
+            if (command.equals("PONG") || command.equals("PASS") || command.equals("NICK")
+                    || command.equals("USER") || command.equals("QUIT") || command.equals("CAP")) {
+                return CRITICAL;
+            } else if (command.equals("MODE") || command.equals("KICK") || command.equals("JOIN")
+                    || command.equals("PART") || command.equals("TOPIC") || command.equals("INVITE")) {
+                return HIGH;
+            } else if (command.equals("WHO") || command.equals("WHOIS") || command.equals("NAMES")
+                    || command.equals("LIST")) {
+                return LOW;
+            }
+            return NORMAL;
+        }
+    }
+
+    /**
+     * The number of bytes of a line that cost one extra token.
+     */
+    public static final int PENALTY_BYTES = 120;
+
+    /**
+     * The default capacity of the low priority lines.
+     */
+    public static final int DEFAULT_LOW_CAPACITY = 512;
+
+    private final Server server;
+    private final ScheduledExecutorService executor;
+    private final Lane[] lanes;
+    private final Map<String, Integer> weights = new HashMap<String, Integer>();
+    private final TokenBucket lines = new TokenBucket(1, 5);
+    private final TokenBucket bytes = new TokenBucket(0, 0);
+    private int size;
+    private long dropped, coalesced;
+    private boolean scheduled;
+    private volatile boolean stopped;
+    private final Runnable tick = new Runnable() {
+        public void run() {
+            synchronized (OutboundQueue.this) {
+                scheduled = false;
+            }
+            OutboundQueue.this.run();
+        }
+    };
+
+    public OutboundQueue(final Server server, final ScheduledExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+        lanes = new Lane[Priority.values().length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane();
+        }
+        lanes[Priority.LOW.ordinal()].capacity = DEFAULT_LOW_CAPACITY;
+    }
+
+    /**
+     * Sets how quickly lines may be sent. By default five lines may be sent
+     * at once, and then one each second.
+     *
+     * @param perSecond the number of tokens added each second, <tt>0</tt> for
+     *                  no limit
+     * @param burst     the most tokens that may be saved up
+     */
+    public void setLineRate(final double perSecond, final double burst) {
+        lines.setRate(perSecond, burst);
+        run();
+    }
+
+    /**
+     * Sets how many bytes may be sent each second. By default the number of
+     * bytes isn't limited.
+     *
+     * @param perSecond the number of bytes that may be sent each second,
+     *                  <tt>0</tt> for no limit
+     * @param burst     the most bytes that may be sent at once
+     */
+    public void setByteRate(final double perSecond, final double burst) {
+        bytes.setRate(perSecond, burst);
+        run();
+    }
+
+    /**
+     * Sets how many lines a target may send each time it takes its turn. By
+     * default each target sends one line a turn.
+     *
+     * @param target the channel or nick lines are sent to
+     * @param weight the number of lines the target may send each turn
+     */
+    public synchronized void setWeight(final String target, final int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("The weight must be positive: " + weight);
+        }
+        weights.put(server.fold(target), weight);
+    }
+
+    /**
+     * Gets how many lines a target may send each time it takes its turn.
+     *
+     * @param target the channel or nick lines are sent to
+     * @return the weight of the target
+     */
+    public synchronized int getWeight(final String target) {
+        final Integer weight = weights.get(server.fold(target));
+        return weight == null ? 1 : weight;
+    }
+
+    /**
+     * Sets the most lines of a priority that may wait to be sent. Once a
+     * priority is full, new lines of that priority are dropped. Critical lines
+     * are never queued, so they can't be limited.
+     *
+     * @param priority the priority
+     * @param capacity the most lines that may wait, <tt>0</tt> for no limit
+     */
+    public synchronized void setCapacity(final Priority priority, final int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("The capacity can't be negative: " + capacity);
+        }
+        lanes[priority.ordinal()].capacity = capacity;
+    }
+
+    /**
+     * Gets the most lines of a priority that may wait to be sent.
+     *
+     * @param priority the priority
+     * @return the capacity, or <tt>0</tt> if there is no limit
+     */
+    public synchronized int getCapacity(final Priority priority) {
+        return lanes[priority.ordinal()].capacity;
+    }
+
+    /**
+     * Gets the number of lines dropped because their priority was full.
+     *
+     * @return the number of lines dropped
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Gets the number of low priority lines not queued because the same line
+     * was already waiting to be sent.
+     *
+     * @return the number of lines not queued
+     */
+    public synchronized long getCoalescedCount() {
+        return coalesced;
+    }
+
+    /**
+     * Stores the weights of the targets again under their keys, once the
+     * casemapping of the server has changed.
+     */
+    synchronized void rehash() {
+        final Map<String, Integer> map = new HashMap<String, Integer>(weights);
+        weights.clear();
+        for (Map.Entry<String, Integer> entry : map.entrySet()) {
+            weights.put(server.fold(entry.getKey()), entry.getValue());
+        }
+    }
+
+    /**
+     * Adds a line to the queue, and writes it straight away if the token
+     * buckets allow it.
+     *
+     * @param line the line to send, ending with CRLF
+     */
+    public void add(final String line) {
+        final Priority priority = Priority.of(line);
+        if (priority == Priority.CRITICAL) {
+            final boolean written;
+            synchronized (this) {
+                if (stopped) {
+                    return;
+                }
+                lines.acquire(cost(line));
+                bytes.acquire(line.length());
+                written = write(server.getWriter(), line);
+            }
+            if (written) {
+                server.flush();
+            }
+            return;
+        }
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            final Lane lane = lanes[priority.ordinal()];
+            final String target = targetOf(line);
+            if (priority == Priority.LOW && lane.contains(target, line)) {
+                coalesced++;
+                return;
+            }
+            if (lane.capacity > 0 && lane.size >= lane.capacity) {
+                dropped++;
+                return;
+            }
+            lane.offer(target, line);
+            size++;
+        }
+        run();
+    }
+
+    /**
+     * Gets the number of lines waiting to be sent.
+     *
+     * @return the number of lines waiting to be sent
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of lines of a priority waiting to be sent.
+     *
+     * @param priority the priority
+     * @return the number of lines waiting to be sent
+     */
+    public synchronized int size(final Priority priority) {
+        return lanes[priority.ordinal()].size;
+    }
+
+    /**
+     * Gets the number of lines waiting to be sent to a target.
+     *
+     * @param target the channel or nick
+     * @return the number of lines waiting to be sent to the target
+     */
+    public synchronized int getQueuedCount(final String target) {
+        final String key = server.fold(target);
+        int count = 0;
+        for (Lane lane : lanes) {
+            final TargetQueue queue = lane.targets.get(key);
+            if (queue != null) {
+                count += queue.lines.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the number of lines waiting to be sent to each target.
+     *
+     * @return a map of targets to the number of lines waiting to be sent to
+     * them, containing only targets with lines waiting
+     */
+    public synchronized Map<String, Integer> getQueuedCounts() {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (Lane lane : lanes) {
+            for (TargetQueue queue : lane.active) {
+                final Integer count = counts.get(queue.target);
+                counts.put(queue.target, (count == null ? 0 : count) + queue.lines.size());
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Stops sending lines, lines still waiting are dropped.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        for (Lane lane : lanes) {
+            lane.clear();
+        }
+        size = 0;
+    }
+
+    /**
+     * Writes as many lines as the token buckets allow, and schedules the rest
+     * to be written once there are enough tokens.
+     */
+    public void run() {
+        final Writer writer = server.getWriter();
+        boolean written = false;
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            Lane lane;
+            while ((lane = next()) != null) {
+                final String line = lane.peek();
+                final double cost = cost(line);
+                final long delay = Math.max(lines.getDelay(cost, TimeUnit.MILLISECONDS),
+                        bytes.getDelay(line.length(), TimeUnit.MILLISECONDS));
+                if (delay > 0) {
+                    schedule(delay);
+                    break;
+                }
+                lines.acquire(cost);
+                bytes.acquire(line.length());
+                lane.poll();
+                size--;
+                written |= write(writer, line);
+            }
+        }
+        if (written) {
+            server.flush();
+        }
+    }
+
+    /**
+     * Writes every line still waiting, whatever the token buckets allow, and
+     * stops sending lines. Used when quitting, so that nothing sent before
+     * quitting is lost.
+     */
+    public void drain() {
+        final Writer writer = server.getWriter();
+        synchronized (this) {
+            Lane lane;
+            while ((lane = next()) != null) {
+                write(writer, lane.poll());
+                size--;
+            }
+            stopped = true;
+        }
+        server.flush();
+    }
+
+    private Lane next() {
+        for (Lane lane : lanes) {
+            if (lane.size > 0) {
+                return lane;
+            }
+        }
+        return null;
+    }
+
+    private static boolean write(final Writer writer, final String line) {
+        try {
+            writer.write(line);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static double cost(final String line) {
+        return 1 + line.length() / (double) PENALTY_BYTES;
+    }
+
+    /**
+     * Gets the target of a line, its first parameter.
+     *
+     * @param line the line
+     * @return the folded target, or an empty string if the line has no
+     * parameters
+     */
+    private String targetOf(final String line) {
+        final int start = line.indexOf(' ') + 1;
+        if (start == 0 || start >= line.length() || line.charAt(start) == ':') {
+            return "";
+        }
+        int end = start;
+        while (end < line.length() && line.charAt(end) != ' ' && line.charAt(end) != '\r') {
+            end++;
+        }
+        return server.fold(line.substring(start, end));
+    }
+
+    private void schedule(final long delay) {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        try {
+            executor.schedule(tick, Math.max(1, delay), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            scheduled = false;
+        }
+    }
+
+    /**
+     * The lines of one priority, kept in a queue for each target. The targets
+     * with lines waiting take turns, each sending up to its weight in lines.
+     */
+    private final class Lane {
+        private final Map<String, TargetQueue> targets = new HashMap<String, TargetQueue>();
+        private final ArrayDeque<TargetQueue> active = new ArrayDeque<TargetQueue>();
+        private int size;
+        private int capacity;
+
+        private boolean contains(final String target, final String line) {
+            final TargetQueue queue = targets.get(target);
+            return queue != null && queue.lines.contains(line);
+        }
+
+        private void offer(final String target, final String line) {
+            TargetQueue queue = targets.get(target);
+            if (queue == null) {
+                queue = new TargetQueue(target);
+                targets.put(target, queue);
+                active.offer(queue);
+            }
+            queue.lines.offer(line);
+            size++;
+        }
+
+        private String peek() {
+            final TargetQueue queue = active.peek();
+            if (queue.deficit <= 0) {
+                queue.deficit += getWeight(queue.target);
+            }
+            return queue.lines.peek();
+        }
+
+        private String poll() {
+            final String line = peek();
+            final TargetQueue queue = active.peek();
+            queue.lines.poll();
+            queue.deficit--;
+            size--;
+            if (queue.lines.isEmpty()) {
+                active.poll();
+                targets.remove(queue.target);
+            } else if (queue.deficit <= 0) {
+                active.offer(active.poll());
+            }
+            return line;
+        }
+
+        private void clear() {
+            targets.clear();
+            active.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * The lines waiting to be sent to one target.
+     */
+    private static final class TargetQueue {
+        private final String target;
+        private final ArrayDeque<String> lines = new ArrayDeque<String>();
+        private int deficit;
+
+        private TargetQueue(final String target) {
+            this.target = target;
+        }
+    }
+}
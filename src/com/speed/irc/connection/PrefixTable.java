@@ -0,0 +1,233 @@
+package com.speed.irc.connection;
+
+import com.speed.irc.types.ChannelUser;
+
+import java.util.Arrays;
+
+/**
+ * The channel access modes of a server, from its PREFIX setting, e.g.
+ * <tt>(ov)@+</tt>. The modes a user has in a channel are held as a bitmask,
+ * where bit <tt>i</tt> is set if the user has the <tt>i</tt>th mode, highest
+ * first, and the prefix strings for each bitmask, e.g. <tt>@+</tt>, are only
+ * created once.
+ * <p/>
+ * Mode letters and prefix symbols are looked up in tables indexed by the
+ * character, rather than searched for.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class PrefixTable {
+    /**
+     * The access modes used when the server doesn't say, <tt>(ov)@+</tt>.
+     */
+    public static final PrefixTable DEFAULT = new PrefixTable(new char[]{'o', 'v'}, new char[]{'@', '+'});
+
+    /**
+     * The most modes the prefix strings are cached for.
+     */
+    private static final int MAX_CACHED = 10;
+
+    private final char[] letters;
+    private final char[] symbols;
+    private final String[] strings;
+    private final byte[] letterIndex = new byte[128];
+    private final byte[] symbolIndex = new byte[128];
+    private final int[] rights;
+
+    /**
+     * Creates a table of access modes.
+     *
+     * @param letters the mode letters, highest first
+     * @param symbols the prefix symbols of the modes, in the same order
+     */
+    public PrefixTable(final char[] letters, final char[] symbols) {
+        if (letters.length != symbols.length || letters.length > 31) {
+            throw new IllegalArgumentException("Invalid prefixes: " + new String(letters) + " "
+                    + new String(symbols));
+        }
+        this.letters = letters.clone();
+        this.symbols = symbols.clone();
+        this.strings = letters.length <= MAX_CACHED ? new String[1 << letters.length] : null;
+        this.rights = new int[letters.length];
+        Arrays.fill(letterIndex, (byte) -1);
+        Arrays.fill(symbolIndex, (byte) -1);
+        for (int i = letters.length - 1; i >= 0; i--) {
+            if (letters[i] < 128) {
+                letterIndex[letters[i]] = (byte) i;
+            }
+            if (symbols[i] < 128) {
+                symbolIndex[symbols[i]] = (byte) i;
+            }
+            rights[i] = rightsOf(letters[i], symbols[i]);
+        }
+    }
+
+    /**
+     * Gets the flag of an access mode, see {@link ChannelUser#getRights()}.
+     * Modes are known by their usual letter, or failing that their usual
+     * symbol.
+     *
+     * @param letter the mode letter
+     * @param symbol the prefix symbol
+     * @return the flag of the mode, or <tt>0</tt> if it isn't a known mode
+     */
+    private static int rightsOf(final char letter, final char symbol) {
+        switch (letter) {
+            case 'q':
+                return ChannelUser.OWNER_FLAG;
+            case 'a':
+                return ChannelUser.ADMIN_FLAG;
+            case 'o':
+                return ChannelUser.OP_FLAG;
+            case 'h':
+                return ChannelUser.HALF_OP_FLAG;
+            case 'v':
+                return ChannelUser.VOICE_FLAG;
+        }
+        switch (symbol) {
+            case '~':
+                return ChannelUser.OWNER_FLAG;
+            case '&':
+                return ChannelUser.ADMIN_FLAG;
+            case '@':
+                return ChannelUser.OP_FLAG;
+            case '%':
+                return ChannelUser.HALF_OP_FLAG;
+            case '+':
+                return ChannelUser.VOICE_FLAG;
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the number of access modes.
+     *
+     * @return the number of modes
+     */
+    public int size() {
+        return letters.length;
+    }
+
+    /**
+     * Gets the index of a mode letter.
+     *
+     * @param letter the mode letter, e.g. <tt>o</tt>
+     * @return the index of the mode, or <tt>-1</tt> if it isn't an access mode
+     */
+    public int indexOfLetter(final char letter) {
+        return letter < 128 ? letterIndex[letter] : -1;
+    }
+
+    /**
+     * Gets the index of a prefix symbol.
+     *
+     * @param symbol the prefix symbol, e.g. <tt>@</tt>
+     * @return the index of the mode, or <tt>-1</tt> if it isn't a prefix
+     */
+    public int indexOfSymbol(final char symbol) {
+        return symbol < 128 ? symbolIndex[symbol] : -1;
+    }
+
+    public char getLetter(final int index) {
+        return letters[index];
+    }
+
+    public char getSymbol(final int index) {
+        return symbols[index];
+    }
+
+    /**
+     * Gets the flags of the modes in a bitmask, see
+     * {@link ChannelUser#getRights()}.
+     *
+     * @param mask the bitmask of the modes
+     * @return the flags of the modes
+     */
+    public int getRights(final int mask) {
+        int flags = 0;
+        for (int bits = mask; bits != 0; bits &= bits - 1) {
+            flags |= rights[Integer.numberOfTrailingZeros(bits)];
+        }
+        return flags;
+    }
+
+    /**
+     * Gets the bitmask of the modes in a prefix string.
+     *
+     * @param prefixes the prefix symbols, e.g. <tt>@+</tt>
+     * @return the bitmask of the modes, unknown symbols are ignored
+     */
+    public int parse(final String prefixes) {
+        int mask = 0;
+        for (int i = 0; i < prefixes.length(); i++) {
+            final int index = indexOfSymbol(prefixes.charAt(i));
+            if (index >= 0) {
+                mask |= 1 << index;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Gets the bitmask of the modes at the start of a string, such as a nick
+     * from a NAMES reply.
+     *
+     * @param s     the string
+     * @param start the index to start at
+     * @param end   the index to stop at
+     * @return the bitmask of the modes, up to the first character that isn't
+     * a prefix symbol
+     */
+    public int parse(final CharSequence s, final int start, final int end) {
+        int mask = 0;
+        for (int i = start; i < end; i++) {
+            final int index = indexOfSymbol(s.charAt(i));
+            if (index < 0) {
+                break;
+            }
+            mask |= 1 << index;
+        }
+        return mask;
+    }
+
+    /**
+     * Gets the prefix string of a bitmask of modes, highest first.
+     *
+     * @param mask the bitmask of the modes
+     * @return the prefix symbols, e.g. <tt>@+</tt>
+     */
+    public String toString(final int mask) {
+        if (strings != null) {
+            final String cached = strings[mask];
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final StringBuilder builder = new StringBuilder(Integer.bitCount(mask));
+        for (int i = 0; i < symbols.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                builder.append(symbols[i]);
+            }
+        }
+        final String s = builder.toString();
+        if (strings != null) {
+            strings[mask] = s;
+        }
+        return s;
+    }
+}
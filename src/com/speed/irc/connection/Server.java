@@ -4,22 +4,26 @@ import com.speed.irc.connection.ssl.IRCTrustManager;
 import com.speed.irc.event.EventManager;
 import com.speed.irc.event.api.ApiEvent;
 import com.speed.irc.types.*;
+import com.speed.irc.util.CaseMapping;
+import com.speed.irc.util.StringPool;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A class representing a socket connection to an IRC server with the
@@ -47,54 +51,92 @@ public class Server implements Runnable {
 	private volatile BufferedReader read;
 	protected volatile Socket socket;
 	protected EventManager eventManager = new EventManager();
-	private Map<String, Channel> channels = new HashMap<String, Channel>();
+	private Map<String, Channel> channels = new ConcurrentHashMap<String, Channel>();
 	private static SSLContext context;
-	private List<ServerUser> users;
+	private final ConcurrentMap<String, ServerUser> users = new ConcurrentHashMap<String, ServerUser>();
+	private volatile CaseMapping caseMapping = CaseMapping.RFC1459;
+	private final StringPool strings = new StringPool();
+	private volatile PrefixTable prefixTable;
 	private char[] modeSymbols;
 	private char[] channelPrefix;
 	private char[] modeLetters;
 	private String serverName;
 	private String nick, realName, user;
 	private ServerMessageParser parser;
-	protected HashSet<CTCPReply> ctcpReplies = new HashSet<CTCPReply>();
+	protected final CtcpRouter ctcpRouter = new CtcpRouter();
 	public Map<ServerUser, Collection<RawMessage>> whoisWaiting = new HashMap<ServerUser, Collection<RawMessage>>();
 	protected boolean autoConnect;
 	private int port;
-	private ScheduledThreadPoolExecutor chanExec;
-	private ScheduledExecutorService serverExecutor, eventExecutor;
+	private final ConnectionManager connectionManager;
+	private final boolean ownsConnectionManager;
+	private final AtomicBoolean reconnecting = new AtomicBoolean();
+	private final OutboundQueue outbound;
+	private final MessageBatcher batcher;
+	private final ModeBatcher modeBatcher;
 	private ModeList userModes;
 
 	/**
-	 * Initialises a server object. Only blocking IO is supported.
+	 * Initialises a server object. Sockets opened from a
+	 * {@link java.nio.channels.SocketChannel} are read without blocking, other
+	 * sockets (e.g. SSL sockets) are read using blocking IO.
 	 *
 	 * @param sock The socket used for communication to the IRC server.
 	 * @throws IOException
 	 */
 	public Server(final Socket sock) throws IOException {
+		this(sock, null);
+	}
+
+	/**
+	 * Initialises a server object which shares the selector and worker threads
+	 * of a connection manager with other servers.
+	 *
+	 * @param sock    The socket used for communication to the IRC server.
+	 * @param manager The connection manager to use, or <tt>null</tt> to create
+	 *                one for this server alone.
+	 * @throws IOException
+	 */
+	public Server(final Socket sock, final ConnectionManager manager) throws IOException {
 		socket = sock;
 		port = sock.getPort();
 		setServerName(socket.getRemoteSocketAddress().toString());
-		write = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream()));
-		read = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-		chanExec = new ScheduledThreadPoolExecutor(10);
-		serverExecutor = Executors.newSingleThreadScheduledExecutor();
-		eventExecutor = Executors.newSingleThreadScheduledExecutor();
-		serverExecutor.scheduleWithFixedDelay(this, 1000, 200, TimeUnit.MILLISECONDS);
-		eventExecutor.scheduleWithFixedDelay(eventManager, 1000, 100, TimeUnit.MILLISECONDS);
+		ownsConnectionManager = manager == null;
+		connectionManager = manager == null ? new ConnectionManager(2) : manager;
+		outbound = new OutboundQueue(this, connectionManager.getWorkers());
+		batcher = new MessageBatcher(this, connectionManager.getWorkers());
+		modeBatcher = new ModeBatcher(this, connectionManager.getWorkers());
+		ctcpRouter.add(ServerMessageParser.CTCP_REPLY_VERSION);
+		ctcpRouter.add(ServerMessageParser.CTCP_REPLY_TIME);
+		ctcpRouter.add(ServerMessageParser.CTCP_REPLY_PING);
 		parser = new ServerMessageParser(this);
-		users = new CopyOnWriteArrayList<ServerUser>();
-		ctcpReplies.add(ServerMessageParser.CTCP_REPLY_VERSION);
-		ctcpReplies.add(ServerMessageParser.CTCP_REPLY_TIME);
-		ctcpReplies.add(ServerMessageParser.CTCP_REPLY_PING);
+		initStreams();
+		eventManager.setExecutor(connectionManager.getWorkers());
+		parser.start();
 	}
 
 	public Server(final String host, final int port) throws IOException {
-		this(new Socket(host, port));
-
+		this(host, port, false, null);
 	}
 
 	public Server(final String host, final int port, final boolean ssl) throws IOException {
-		this(ssl ? context.getSocketFactory().createSocket(host, port) : new Socket(host, port));
+		this(host, port, ssl, null);
+	}
+
+	/**
+	 * Connects to a server, sharing the selector and worker threads of a
+	 * connection manager with other servers.
+	 *
+	 * @param host    the host name of the server
+	 * @param port    the port to connect to
+	 * @param ssl     whether to use ssl or not
+	 * @param manager the connection manager to use, or <tt>null</tt> to create
+	 *                one for this server alone.
+	 * @throws IOException
+	 */
+	public Server(final String host, final int port, final boolean ssl, final ConnectionManager manager)
+			throws IOException {
+		this(ssl ? context.getSocketFactory().createSocket(host, port) : SocketChannel.open(
+				new InetSocketAddress(host, port)).socket(), manager);
 	}
 
 	static {
@@ -106,6 +148,26 @@ public class Server implements Runnable {
 		}
 	}
 
+	/**
+	 * Sets up the reader and writer for the current socket. Channel backed
+	 * sockets are written to through a {@link ChannelOutputStream} since their
+	 * streams can't be used once the channel is non-blocking.
+	 *
+	 * @throws IOException if the streams could not be opened
+	 */
+	private void initStreams() throws IOException {
+		final SocketChannel channel = socket.getChannel();
+		if (channel != null) {
+			final ChannelOutputStream out = new ChannelOutputStream(channel, parser.reader);
+			parser.reader.setOutput(out);
+			write = new BufferedWriter(new OutputStreamWriter(out));
+			read = null;
+		} else {
+			write = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+			read = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		}
+	}
+
 	public void parseUserModes(final String modes) {
 		userModes.parse(modes);
 	}
@@ -130,17 +192,40 @@ public class Server implements Runnable {
 		return user;
 	}
 
+	/**
+	 * Removes a channel from the Server's list, should only really be used
+	 * internally once we have left the channel. The channel stops listening
+	 * to events, so a channel joined again later with the same name is
+	 * represented by a new object.
+	 *
+	 * @param channel the channel to remove
+	 */
 	public void removeChannel(Channel channel) {
-		channels.remove(channel.getName().toLowerCase());
+		final String key = fold(channel.getName());
+		// channels with the same name are equal, so only remove this one
+		if (channels.get(key) == channel) {
+			channels.remove(key);
+		}
+		eventManager.removeChannelListener(channel, channel);
 	}
 
 	/**
 	 * Gets the channel thread executor, used to send WHO requests for channels.
+	 * This is the worker pool of the server's connection manager.
 	 *
 	 * @return the channel thread executor
 	 */
 	public ScheduledThreadPoolExecutor getChanExec() {
-		return chanExec;
+		return connectionManager.getWorkers();
+	}
+
+	/**
+	 * Gets the connection manager which reads from this server.
+	 *
+	 * @return the connection manager of this server
+	 */
+	public ConnectionManager getConnectionManager() {
+		return connectionManager;
 	}
 
 	/**
@@ -226,9 +311,12 @@ public class Server implements Runnable {
 	 */
 	public void quit(final String message) {
 		eventManager.dispatchEvent(new ApiEvent(ApiEvent.SERVER_QUIT, this, this));
-		parser.reader.running = false;
+		parser.reader.stop();
 		try {
 			if (!socket.isClosed()) {
+				batcher.flush();
+				modeBatcher.flush();
+				outbound.drain();
 				getWriter().write(
 						"QUIT" + (message == null || message.trim().isEmpty() ? "\n" : (" :" + message + "\n")));
 				getWriter().flush();
@@ -237,11 +325,19 @@ public class Server implements Runnable {
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		// give the worker threads a second to dispatch the last events
 		try {
-			Thread.sleep(1000);
-		} catch (InterruptedException e1) {
-			e1.printStackTrace();
+			connectionManager.getWorkers().schedule(new Runnable() {
+				public void run() {
+					shutdown();
+				}
+			}, 1, TimeUnit.SECONDS);
+		} catch (RejectedExecutionException e) {
+			shutdown();
 		}
+	}
+
+	private void shutdown() {
 		for (Channel c : channels.values()) {
 			if (c.getFuture() != null && !c.getFuture().isDone())
 				c.getFuture().cancel(true);
@@ -251,10 +347,11 @@ public class Server implements Runnable {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		eventExecutor.shutdownNow();
-		parser.execServ.shutdownNow();
-		chanExec.shutdownNow();
-		serverExecutor.shutdownNow();
+		outbound.stop();
+		eventManager.setExecutor(null);
+		if (ownsConnectionManager) {
+			connectionManager.shutdown();
+		}
 	}
 
 	/**
@@ -278,9 +375,10 @@ public class Server implements Runnable {
 
 	protected final void connect() {
 		try {
-			socket = new Socket(serverName, port);
-			write = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-			read = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			// the server name of a socket passed in is its address, e.g. /127.0.0.1:6667
+			final InetAddress address = socket.getInetAddress();
+			socket = SocketChannel.open(address == null ? new InetSocketAddress(serverName, port)
+					: new InetSocketAddress(address, port)).socket();
 			Logger logger = null;
 			boolean log = false;
 			if (parser.reader.logging) {
@@ -288,9 +386,11 @@ public class Server implements Runnable {
 				log = parser.reader.logging;
 			}
 			parser = new ServerMessageParser(this);
+			initStreams();
 			if (logger != null && log) {
 				setReadDebug(logger);
 			}
+			parser.start();
 		} catch (UnknownHostException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
@@ -314,14 +414,17 @@ public class Server implements Runnable {
 	 * @return the reply retrieved
 	 */
 	public CTCPReply getCtcp(String request) {
-		synchronized (ctcpReplies) {
-			for (CTCPReply reply : ctcpReplies) {
-				if (reply.getRequest().equals(request)) {
-					return reply;
-				}
-			}
-		}
-		return null;
+		return ctcpRouter.get(request);
+	}
+
+	/**
+	 * Gets the router which finds the automatic replies to CTCP requests, and
+	 * limits how often they are sent.
+	 *
+	 * @return the CTCP router of this server
+	 */
+	public CtcpRouter getCtcpRouter() {
+		return ctcpRouter;
 	}
 
 	/**
@@ -350,25 +453,21 @@ public class Server implements Runnable {
 	 * @param reply   the reply to send for the request
 	 */
 	public void setCtcpReply(final String request, final String reply) {
-		synchronized (ctcpReplies) {
-			ctcpReplies.add(new CTCPReply() {
+		ctcpRouter.add(new CTCPReply() {
 
-				public String getReply() {
-					return reply;
-				}
+			public String getReply() {
+				return reply;
+			}
 
-				public String getRequest() {
-					return request;
-				}
+			public String getRequest() {
+				return request;
+			}
 
-			});
-		}
+		});
 	}
 
 	public void removeCtcpReply(final CTCPReply reply) {
-		synchronized (ctcpReplies) {
-			ctcpReplies.remove(reply);
-		}
+		ctcpRouter.remove(reply);
 	}
 
 	/**
@@ -377,9 +476,7 @@ public class Server implements Runnable {
 	 * @param reply the CTCPReply to be added to the list
 	 */
 	public void addCtcpReply(final CTCPReply reply) {
-		synchronized (ctcpReplies) {
-			ctcpReplies.add(reply);
-		}
+		ctcpRouter.add(reply);
 	}
 
 	/**
@@ -389,44 +486,7 @@ public class Server implements Runnable {
 	 * @return the reply for the supplied request
 	 */
 	public String getCtcpReply(final String request) {
-		synchronized (ctcpReplies) {
-			for (CTCPReply reply : ctcpReplies) {
-				Matcher matcher = Pattern.compile(reply.getRequest(), Pattern.CASE_INSENSITIVE).matcher(request);
-				if (matcher.matches()) {
-					if (matcher.groupCount() == 0)
-						return reply.getReply();
-					else {
-						String resp = reply.getReply();
-						StringBuffer response = new StringBuffer();
-						boolean flag = false;
-						for (int i = 0; i < resp.length(); i++) {
-							char c = resp.charAt(i);
-							if (c == '$' && (i == 0 || resp.charAt(i - 1) != '\\')) {
-								flag = true;
-								continue;
-							} else if (resp.charAt(i - 1) == '\\') {
-								response.deleteCharAt(i - 1);
-							} else if (Character.isDigit(c) && flag) {
-								int group = Character.getNumericValue(c);
-								flag = false;
-								try {
-									String str = matcher.group(group);
-									response.append(str);
-								} catch (IndexOutOfBoundsException e) {
-									e.printStackTrace();
-								}
-								continue;
-
-							}
-							response.append(c);
-
-						}
-						return response.toString();
-					}
-				}
-			}
-		}
-		return null;
+		return ctcpRouter.getReply(request);
 	}
 
 	/**
@@ -442,12 +502,36 @@ public class Server implements Runnable {
 			raw = raw.replace("\n", "").replace("\r", "");
 		if (!raw.endsWith("\r\n"))
 			raw += "\r\n";
-		try {
-			// System.out.println(raw);
-			write.write(raw);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		outbound.add(raw);
+	}
+
+	/**
+	 * Gets the queue of lines waiting to be sent to the server, which limits
+	 * how quickly lines are sent.
+	 *
+	 * @return the outbound queue of this server
+	 */
+	public OutboundQueue getOutboundQueue() {
+		return outbound;
+	}
+
+	/**
+	 * Gets the batcher which combines messages with the same text sent to
+	 * several targets.
+	 *
+	 * @return the message batcher of this server
+	 */
+	public MessageBatcher getMessageBatcher() {
+		return batcher;
+	}
+
+	/**
+	 * Gets the batcher which combines the mode changes made to channels.
+	 *
+	 * @return the mode batcher of this server
+	 */
+	public ModeBatcher getModeBatcher() {
+		return modeBatcher;
 	}
 
 	/**
@@ -471,7 +555,7 @@ public class Server implements Runnable {
 	 * @param channel the channel to add to the internal map
 	 */
 	public void addChannel(final Channel channel) {
-		channels.put(channel.getName().toLowerCase(), channel);
+		channels.put(fold(channel.getName()), channel);
 	}
 
 	/**
@@ -495,7 +579,8 @@ public class Server implements Runnable {
 	/**
 	 * Gets the buffered reader.
 	 *
-	 * @return the buffered reader.
+	 * @return the buffered reader, or <tt>null</tt> if the socket is being read
+	 * without blocking.
 	 */
 	public BufferedReader getReader() {
 		return read;
@@ -531,6 +616,7 @@ public class Server implements Runnable {
 
 	protected void setModeSymbols(final char[] modeSymbols) {
 		this.modeSymbols = modeSymbols;
+		prefixTable = null;
 	}
 
 	/**
@@ -544,6 +630,52 @@ public class Server implements Runnable {
 
 	protected void setModeLetters(final char[] modeLetters) {
 		this.modeLetters = modeLetters;
+		prefixTable = null;
+	}
+
+	/**
+	 * Gets the channel access modes of the server, used to hold the modes of
+	 * channel users as a bitmask.
+	 *
+	 * @return the access modes, {@link PrefixTable#DEFAULT} until the server
+	 * sends its PREFIX setting
+	 */
+	public PrefixTable getPrefixTable() {
+		PrefixTable table = prefixTable;
+		if (table == null) {
+			final char[] letters = modeLetters, symbols = modeSymbols;
+			table = letters == null || symbols == null || letters.length != symbols.length ? PrefixTable.DEFAULT
+					: new PrefixTable(letters, symbols);
+			prefixTable = table;
+		}
+		return table;
+	}
+
+	/**
+	 * Checks whether a channel mode has a parameter, from the PREFIX and
+	 * CHANMODES settings of the server.
+	 *
+	 * @param mode the mode letter
+	 * @param plus <tt>true</tt> if the mode is being set, <tt>false</tt> if it
+	 *             is being removed
+	 * @return <tt>true</tt> if the mode has a parameter
+	 */
+	public boolean hasModeParameter(final char mode, final boolean plus) {
+		if (getPrefixTable().indexOfLetter(mode) >= 0) {
+			return true;
+		}
+		final int type = parser.getServerSupport().getChanModeType(mode);
+		return type == 0 || type == 1 || (type == 2 && plus);
+	}
+
+	/**
+	 * Gets the pool the hosts and usernames of the users on this server are
+	 * shared through, so that each is only held once.
+	 *
+	 * @return the string pool of the server
+	 */
+	public StringPool getStringPool() {
+		return strings;
 	}
 
 	/**
@@ -552,7 +684,7 @@ public class Server implements Runnable {
 	 * @param notice the notice to send, sender can be null.
 	 */
 	public void sendNotice(final Notice notice) {
-		sendRaw("NOTICE " + notice.getTarget() + " :" + notice.getMessage() + "\n");
+		batcher.add("NOTICE", notice.getTarget().getName(), notice.getMessage());
 	}
 
 	/**
@@ -561,7 +693,7 @@ public class Server implements Runnable {
 	 * @param msg the message to send, sender can be null.
 	 */
 	public void sendMessage(final Privmsg msg) {
-		sendRaw(String.format("PRIVMSG %s :%s", msg.getConversable().getName(), msg.getMessage()));
+		batcher.add("PRIVMSG", msg.getConversableName(), msg.getMessage());
 	}
 
 	/**
@@ -572,11 +704,112 @@ public class Server implements Runnable {
 	 * found.
 	 */
 	public ServerUser getUser(final String nick) {
-		for (ServerUser u : users) {
-			if (u.getNick().equalsIgnoreCase(nick))
-				return u;
+		final ServerUser user = findUser(nick);
+		return user != null ? user : new ServerUser(nick, null, null, this);
+	}
+
+	/**
+	 * Gets a user that shares a channel with us.
+	 *
+	 * @param nick the nickname to search for
+	 * @return the user, or <tt>null</tt> if the user isn't known
+	 */
+	public ServerUser findUser(final String nick) {
+		return nick == null ? null : lookup(users, nick);
+	}
+
+	/**
+	 * Gets the users that share a channel with us. Each user is represented
+	 * by a single object, however many channels they are in.
+	 *
+	 * @return the known users
+	 */
+	public Collection<ServerUser> getUsers() {
+		return Collections.unmodifiableCollection(users.values());
+	}
+
+	/**
+	 * Gets the object representing a user, updating its username and host if
+	 * they are known. A new object is created if the user isn't known, it is
+	 * added to the known users once it joins a channel.
+	 *
+	 * @param nick the nick of the user
+	 * @param user the username of the user, or <tt>null</tt> if not known
+	 * @param host the host of the user, or <tt>null</tt> if not known
+	 * @return the user
+	 */
+	public ServerUser resolveUser(final String nick, final String user, final String host) {
+		final ServerUser known = findUser(nick);
+		if (known == null) {
+			return new ServerUser(nick, host, user, this);
 		}
-		return new ServerUser(nick, null, null, this);
+		known.update(user, host);
+		return known;
+	}
+
+	/**
+	 * Folds a nick or channel name into the key it is stored by, using the
+	 * casemapping of the server.
+	 *
+	 * @param name the nick or channel name
+	 * @return the folded name, the same string if it is already folded
+	 * @see #getCaseMapping()
+	 */
+	public String fold(final String name) {
+		return caseMapping.fold(name);
+	}
+
+	/**
+	 * Gets the casemapping nicks and channel names are compared with, from
+	 * the CASEMAPPING setting of the server.
+	 *
+	 * @return the casemapping of the server, {@link CaseMapping#RFC1459} until
+	 * the server says otherwise
+	 */
+	public CaseMapping getCaseMapping() {
+		return caseMapping;
+	}
+
+	/**
+	 * Sets the casemapping of the server, should only really be used
+	 * internally. The users and channels are stored again under their new
+	 * keys.
+	 *
+	 * @param mapping the casemapping the server uses
+	 */
+	protected void setCaseMapping(final CaseMapping mapping) {
+		if (mapping == caseMapping) {
+			return;
+		}
+		// the new keys are added before the old ones are removed, so lookups
+		// made while the keys change still find each user and channel
+		final Map<String, ServerUser> oldUsers = new HashMap<String, ServerUser>(users);
+		final Map<String, ServerUser> userMap = new HashMap<String, ServerUser>();
+		for (ServerUser user : oldUsers.values()) {
+			userMap.put(mapping.fold(user.getNick()), user);
+		}
+		users.putAll(userMap);
+		final Map<String, Channel> oldChannels = new HashMap<String, Channel>(channels);
+		final Map<String, Channel> channelMap = new HashMap<String, Channel>();
+		for (Channel channel : oldChannels.values()) {
+			channelMap.put(mapping.fold(channel.getName()), channel);
+		}
+		channels.putAll(channelMap);
+		caseMapping = mapping;
+		for (Map.Entry<String, ServerUser> entry : oldUsers.entrySet()) {
+			if (!userMap.containsKey(entry.getKey())) {
+				users.remove(entry.getKey(), entry.getValue());
+			}
+		}
+		for (Map.Entry<String, Channel> entry : oldChannels.entrySet()) {
+			if (!channelMap.containsKey(entry.getKey())) {
+				channels.remove(entry.getKey(), entry.getValue());
+			}
+		}
+		for (Channel channel : channelMap.values()) {
+			channel.rehashUsers();
+		}
+		outbound.rehash();
 	}
 
 	/**
@@ -600,24 +833,21 @@ public class Server implements Runnable {
 	}
 
 	public void run() {
+		flush();
+	}
+
+	/**
+	 * Flushes the lines written to the server, reconnecting if the connection
+	 * has been lost and auto reconnecting is on.
+	 */
+	protected void flush() {
 		try {
 			if (write != null) {
 				write.flush();
 			}
 		} catch (SocketException e) {
 			if (autoConnect) {
-				try {
-					Thread.sleep(5000);
-				} catch (InterruptedException e1) {
-					e1.printStackTrace();
-				}
-				try {
-					socket.close();
-				} catch (IOException e1) {
-					e1.printStackTrace();
-				}
-				connect();
-				eventManager.dispatchEvent(new ApiEvent(ApiEvent.SERVER_DISCONNECTED, this, this));
+				reconnect();
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -625,6 +855,38 @@ public class Server implements Runnable {
 
 	}
 
+	/**
+	 * Closes the connection and connects to the server again five seconds
+	 * later, without holding up the worker threads in the meantime. Does
+	 * nothing if a reconnect is already waiting.
+	 */
+	protected void reconnect() {
+		if (!reconnecting.compareAndSet(false, true)) {
+			return;
+		}
+		parser.reader.stop();
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		final Runnable task = new Runnable() {
+			public void run() {
+				try {
+					connect();
+				} finally {
+					reconnecting.set(false);
+				}
+				eventManager.dispatchEvent(new ApiEvent(ApiEvent.SERVER_DISCONNECTED, Server.this, Server.this));
+			}
+		};
+		try {
+			connectionManager.getWorkers().schedule(task, 5, TimeUnit.SECONDS);
+		} catch (RejectedExecutionException e) {
+			reconnecting.set(false);
+		}
+	}
+
 	/**
 	 * Sets the server's host address.
 	 *
@@ -650,14 +912,14 @@ public class Server implements Runnable {
 	 * @return The channel object.
 	 */
 	public Channel joinChannel(final String channelName) {
-		if (channels.containsKey(channelName.trim())) {
-			final Channel channel = channels.get(channelName.toLowerCase());
+		Channel channel = findChannel(channelName);
+		if (channel != null) {
 			if (!channel.isRunning()) {
 				channel.join();
 			}
 			return channel;
 		}
-		final Channel channel = new Channel(channelName, this);
+		channel = new Channel(channelName, this);
 		channel.join();
 		return channel;
 	}
@@ -669,8 +931,56 @@ public class Server implements Runnable {
 	 * @return a channel object.
 	 */
 	public Channel getChannel(final String channelName) {
-		return channels.containsKey(channelName.toLowerCase().trim()) ? channels.get(channelName.toLowerCase()) : new Channel(
-				channelName, this);
+		final Channel channel = findChannel(channelName);
+		return channel != null ? channel : new Channel(channelName, this);
+	}
+
+	/**
+	 * Gets a channel that is known to the server, without creating one.
+	 *
+	 * @param channelName the name of the channel
+	 * @return the channel, or <tt>null</tt> if the channel isn't known
+	 */
+	public Channel findChannel(final String channelName) {
+		return channelName == null ? null : lookup(channels, channelName.trim());
+	}
+
+	/**
+	 * Gets a user or channel by its name, folding the name again if the
+	 * casemapping changed while it was being looked up, as the keys of the
+	 * users and channels may have changed too.
+	 *
+	 * @param map  the users or channels
+	 * @param name the nick or name of the channel
+	 * @return the user or channel, or <tt>null</tt> if it isn't known
+	 */
+	private <T> T lookup(final Map<String, T> map, final String name) {
+		CaseMapping mapping;
+		T value;
+		do {
+			mapping = caseMapping;
+			value = map.get(mapping.fold(name));
+		} while (value == null && mapping != caseMapping);
+		return value;
+	}
+
+	/**
+	 * Checks whether a name is a channel name, from the channel types the
+	 * server supports.
+	 *
+	 * @param name the name
+	 * @return <tt>true</tt> if the name starts with a channel type
+	 */
+	public boolean isChannelName(final String name) {
+		if (name == null || name.isEmpty()) {
+			return false;
+		}
+		for (char c : getChannelPrefix()) {
+			if (name.charAt(0) == c) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
@@ -678,13 +988,40 @@ public class Server implements Runnable {
 	 *
 	 * @param user the {@link com.speed.irc.types.ServerUser} object to add to
 	 *             this Server.
+	 * @return the user now in the list, which is a different object if a user
+	 * with the same nick was already there
+	 */
+	public ServerUser addUser(final ServerUser user) {
+		final ServerUser known = users.putIfAbsent(fold(user.getNick()), user);
+		return known == null ? user : known;
+	}
+
+	/**
+	 * Removes a user from the Server's list, should only really be used
+	 * internally once the user no longer shares a channel with us.
+	 *
+	 * @param user the user to remove
 	 */
-	public void addUser(final ServerUser user) {
-		users.add(user);
+	public void removeUser(final ServerUser user) {
+		users.remove(fold(user.getNick()), user);
 	}
 
-	protected void removeUser(final ServerUser user) {
-		users.remove(user);
+	/**
+	 * Changes the nick of a user, should only really be used internally. The
+	 * user is locked meanwhile, as channels lock it to add it to or remove it
+	 * from the known users by its nick.
+	 *
+	 * @param user    the user whose nick changed
+	 * @param newNick the new nick of the user
+	 */
+	protected void renameUser(final ServerUser user, final String newNick) {
+		synchronized (user) {
+			final boolean known = users.remove(fold(user.getNick()), user);
+			user.setNick(newNick);
+			if (known) {
+				users.put(fold(newNick), user);
+			}
+		}
 	}
 
 	/**
@@ -695,7 +1032,7 @@ public class Server implements Runnable {
 	 * <tt>false</tt>, otherwise
 	 */
 	public boolean hasChannel(final String name) {
-		return channels.containsKey(name.toLowerCase());
+		return channels.containsKey(fold(name));
 	}
 
 	/**
@@ -1,6 +1,7 @@
 package com.speed.irc.connection;
 
 import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.GeneratorProperties;
 import com.speed.irc.event.IRCEvent;
 import com.speed.irc.event.channel.ChannelUserEvent;
 import com.speed.irc.event.channel.TopicChangedEvent;
@@ -9,9 +10,8 @@ import com.speed.irc.event.message.RawMessageEvent;
 import com.speed.irc.types.*;
 import com.speed.irc.util.Numerics;
 
-import java.util.Date;
-import java.util.List;
-import java.util.concurrent.*;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Processes messages sent from the server.
@@ -33,12 +33,14 @@ import java.util.concurrent.*;
  *
  * @author Shivam Mistry
  */
-public class ServerMessageParser implements Runnable, EventGenerator {
+@GeneratorProperties(commands = {"PING", "TOPIC", "QUIT", "NICK", Numerics.SERVER_SUPPORT,
+        Numerics.CHANNEL_MODES, Numerics.CHANNEL_NAMES, Numerics.CHANNEL_NAMES_END, Numerics.WHO_RESPONSE,
+        Numerics.WHOX_RESPONSE, Numerics.WHO_END, Numerics.BANNED_FROM_CHANNEL, Numerics.CHANNEL_TOPIC, Numerics.CHANNEL_TOPIC_SET})
+public class ServerMessageParser implements EventGenerator {
     private final Server server;
     private List<EventGenerator> generators;
+    private volatile GeneratorTable table;
     protected ServerMessageReader reader;
-    protected ScheduledExecutorService execServ;
-    protected Future<?> future;
     private ServerSupportParser serverSupport;
 
     public static final CTCPReply CTCP_REPLY_VERSION = new CTCPReply() {
@@ -88,17 +90,21 @@ public class ServerMessageParser implements Runnable, EventGenerator {
         generators.add(new PartGenerator());
         generators.add(new PrivmsgGenerator());
         generators.add(new WhoisGenerator(server));
-        reader = new ServerMessageReader(server);
-        execServ = Executors.newSingleThreadScheduledExecutor();
-        new Thread(reader, "Server message reader").start();
-        future = execServ.scheduleWithFixedDelay(this, 0, 20,
-                TimeUnit.MILLISECONDS);
+        table = new GeneratorTable(generators);
         serverSupport = new ServerSupportParser();
+        reader = new ServerMessageReader(server, this);
+    }
+
+    /**
+     * Starts reading messages from the server.
+     */
+    protected void start() {
+        server.getConnectionManager().register(reader);
     }
 
     private synchronized void parse(final String s) throws Exception {
         final RawMessage message = new RawMessage(s, server);
-        for (EventGenerator generator : generators) {
+        for (EventGenerator generator : table.get(message)) {
             if (generator.accept(message)) {
                 IRCEvent event = generator.generate(message);
                 if (event != null)
@@ -114,9 +120,11 @@ public class ServerMessageParser implements Runnable, EventGenerator {
      *
      * @param generator generator to add
      */
-    public void addGenerator(final EventGenerator generator) {
-        if (!generators.contains(generator))
+    public synchronized void addGenerator(final EventGenerator generator) {
+        if (!generators.contains(generator)) {
             generators.add(generator);
+            table = new GeneratorTable(generators);
+        }
     }
 
     /**
@@ -125,25 +133,28 @@ public class ServerMessageParser implements Runnable, EventGenerator {
      * @param generator the generator to remove
      * @return true if it was removed, false if it failed to be removed
      */
-    public boolean removeGenerator(final EventGenerator generator) {
-        return generators.remove(generator);
+    public synchronized boolean removeGenerator(final EventGenerator generator) {
+        if (generators.remove(generator)) {
+            table = new GeneratorTable(generators);
+            return true;
+        }
+        return false;
     }
 
-    public void run() {
-        String s;
-        if (!reader.isEmpty()) {
-            s = reader.poll();
-            if (s.matches("\\W.+"))
-                s = s.substring(1);
-            try {
-                parse(s);
-            } catch (Exception e) {
-                server.eventManager
-                        .dispatchEvent(new com.speed.irc.event.api.ExceptionEvent(new ParsingException(
-                                "Parsing error", e), this, server));
-            }
+    /**
+     * Parses a line read from the server, dispatching any events generated for
+     * it.
+     *
+     * @param s the line read from the server
+     */
+    protected void process(final String s) {
+        try {
+            parse(s);
+        } catch (Exception e) {
+            server.eventManager
+                    .dispatchEvent(new com.speed.irc.event.api.ExceptionEvent(new ParsingException(
+                            "Parsing error", e), this, server));
         }
-
     }
 
     public boolean accept(RawMessage message) {
@@ -151,12 +162,12 @@ public class ServerMessageParser implements Runnable, EventGenerator {
     }
 
     public IRCEvent generate(RawMessage message) {
-        String raw = message.getRaw();
-        String code = message.getCommand().trim();
-        if (raw.startsWith("PING")) {
-            server.sendRaw(raw.replaceFirst("PING", "PONG") + "\n");
-        } else if (message.getCommand().equals(Numerics.SERVER_SUPPORT)) {
+        String code = message.getCommand();
+        if (code.equals("PING")) {
+            server.sendRaw(message.getParamCount() > 0 ? "PONG :" + message.getParam(0) : "PONG");
+        } else if (code.equals(Numerics.SERVER_SUPPORT)) {
             serverSupport.parse(message);
+            server.setCaseMapping(serverSupport.getCaseMapping());
             if (serverSupport.getSettings().containsKey("PREFIX")) {
                 String t = serverSupport.getSettings().getProperty("PREFIX");
                 String letters = t.split("\\(", 2)[1].split("\\)")[0];
@@ -167,120 +178,110 @@ public class ServerMessageParser implements Runnable, EventGenerator {
                 }
             }
         } else if (code.equals(Numerics.CHANNEL_MODES)) {
-            String chan_name = message.getRaw().split(" ")[3];
-            String modez = message.getRaw().split(" ")[4];
+            String chan_name = message.getParam(1);
+            String modez = message.getParam(2);
 			if (server.getChannel(chan_name) == null) {
 				return null;
             }
 			Channel channel = server.getChannel(chan_name);
-			channel.chanModeList.parse(modez);
+			final String[] args = new String[Math.max(0, message.getParamCount() - 3)];
+			for (int i = 0; i < args.length; i++) {
+				args[i] = message.getParam(i + 3);
+			}
+			channel.chanModeList.set(modez, args);
         } else if (code.equals(Numerics.CHANNEL_NAMES)) {
-            String[] parts = message.getRaw().split(" ");
-            // String secret = parts[3];
-            String chan_name = parts[4];
-            String users = message.getRaw().split(" :")[1];
+            // String secret = message.getParam(1);
+            String chan_name = message.getParam(2);
+            String users = message.getTrailing();
 			if (server.getChannel(chan_name) == null) {
 				return null;
             }
 			Channel channel = server.getChannel(chan_name);
 			if (channel.isRunning()) {
-                for (String s : users.split(" ")) {
-                    if (s.matches("[A-Za-z].*")) {
-                        channel.userBuffer.add(new ChannelUser(s, "", "", "",
-                                channel));
-                    } else {
-                        char c = s.charAt(0);
-                        channel.userBuffer.add(new ChannelUser(s.substring(1),
-                                Character.toString(c), "", "", channel));
+                final PrefixTable table = server.getPrefixTable();
+                int start = 0;
+                while (start < users.length()) {
+                    int end = users.indexOf(' ', start);
+                    if (end < 0) {
+                        end = users.length();
+                    }
+                    int nick = start;
+                    while (nick < end && table.indexOfSymbol(users.charAt(nick)) >= 0) {
+                        nick++;
+                    }
+                    if (nick < end) {
+                        channel.syncUser(users.substring(nick, end), table.parse(users, start, nick), null, null,
+                                null, null, null);
                     }
+                    start = end + 1;
                 }
             }
-        } else if (code.equals(Numerics.CHANNEL_NAMES_END)) {
-			Channel channel = server.getChannel(raw.split(" ")[3]);
-			channel.getUsers().clear();
-            channel.getUsers().addAll(channel.userBuffer);
-            channel.userBuffer.clear();
+        } else if (code.equals(Numerics.CHANNEL_NAMES_END) || code.equals(Numerics.WHO_END)) {
+			if (server.hasChannel(message.getParam(1))) {
+				server.getChannel(message.getParam(1)).endSync();
+			}
         } else if (code.equals(Numerics.WHO_RESPONSE)) {
-			Channel channel = server.getChannel(raw.split(" ")[3]);
-			String[] temp = raw.split(" ");
-            String user = temp[4];
-            String host = temp[5];
-            String nick = temp[7];
-            String modes = temp[8];
-            boolean away = modes.contains("G");
-            boolean oper = modes.contains("*");
-            boolean identified = modes.contains("r");
-            modes = modes.replaceAll("[A-Za-z]", "").replace("*", "");
-            ChannelUser u = new ChannelUser(nick, modes, user, host, channel);
-            u.setIdentified(identified);
-            u.setAway(away);
-            u.setOper(oper);
-            channel.userBuffer.add(u);
-
-        } else if (code.equals(Numerics.WHO_END)) {
-			Channel channel = server.getChannel(raw.split(" ")[3]);
-			channel.users.clear();
-            channel.users.addAll(channel.userBuffer);
-            channel.userBuffer.clear();
-        } else if (code.toLowerCase().equals("topic")) {
-            Channel channel = server.getChannel(raw.split(" ")[2]);
+			if (server.hasChannel(message.getParam(1))) {
+				syncWhoUser(server.getChannel(message.getParam(1)), message.getParam(5), message.getParam(2),
+						message.getParam(3), message.getParam(6), null);
+			}
+        } else if (code.equals(Numerics.WHOX_RESPONSE)) {
+            // %tcuhnfa: token, channel, username, host, nick, flags, account
+            if (message.getParamCount() > 7 && message.paramEquals(1, Channel.WHOX_TOKEN)
+                    && server.hasChannel(message.getParam(2))) {
+                syncWhoUser(server.getChannel(message.getParam(2)), message.getParam(5), message.getParam(3),
+                        message.getParam(4), message.getParam(6), message.getParam(7));
+            }
+        } else if (code.equalsIgnoreCase("topic")) {
+            Channel channel = server.getChannel(message.getParam(0));
             if (!channel.isRunning()) {
                 channel.setup();
             }
-            String topicSetter = raw.split(" ")[0];
+            String topicSetter = message.getSender();
             long time = System.currentTimeMillis();
             String oldTopic = channel.getTopic();
+            String newTopic = message.getTrailing();
             channel.setTopicSetter(topicSetter);
             channel.setTopicSetTime(time);
-            String[] temp = raw.split(" :", 2);
-            channel.setTopic(temp[1]);
-            if (temp[0].substring(temp[0].indexOf("TOPIC")).contains(
-                    channel.getName())) {
-                return new TopicChangedEvent(channel, topicSetter, this, new String[]{oldTopic, temp[1]});
-            }
+            channel.setTopic(newTopic);
+            return new TopicChangedEvent(channel, message.getPrefixNick(), this, new String[]{oldTopic, newTopic});
         } else if (code.equals(Numerics.BANNED_FROM_CHANNEL)
                 && message.getTarget().equals(server.getNick())) {
-			Channel channel = server.getChannel(raw.split(" ")[3]);
+			Channel channel = server.getChannel(message.getParam(1));
 			if (channel != null && channel.isRunning())
                 channel.isRunning = false;
         } else if (code.equals("QUIT")) {
-            String nick = raw.split("!")[0];
-            String quitMsg = "";
-            String[] parts = raw.split(" :", 2);
-            if (parts.length > 1) {
-                quitMsg = parts[1];
-            }
-            for (Channel c : server.getChannels()) {
-                if (c.isRunning && c.getUser(nick) != null) {
-                    server.eventManager.dispatchEvent(new ChannelUserEvent(
-                            this, c, c.getUser(nick),
-                            ChannelUserEvent.USER_QUIT, quitMsg));
+            String nick = message.getPrefixNick();
+            String quitMsg = message.getParamCount() > 0 ? message.getParam(0) : "";
+            final ServerUser u = server.findUser(nick);
+            if (u != null) {
+                for (Channel c : u.getChannels()) {
+                    final ChannelUser user = c.getUser(nick);
+                    if (user != null) {
+                        server.eventManager.dispatchEvent(new ChannelUserEvent(
+                                this, c, user, ChannelUserEvent.USER_QUIT, quitMsg));
+                    }
                 }
             }
-        } else if (code.trim().equalsIgnoreCase("nick")) {
-            try {
-                final ServerUser u = server.getUser(message.getSender().split(
-                        "!")[0]);
-                final String oldNick = u.getNick();
-                final String newNick = raw.split(" :")[1].trim();
-                if (oldNick.equals(server.getNick())) {
-                    server.putNick(newNick);
-                }
-
-                if (u instanceof ChannelUser) {
-                    return new ChannelUserEvent(this,
-                            u.getChannel(), (ChannelUser) u,
-                            ChannelUserEvent.USER_NICK_CHANGED, oldNick, newNick);
-                } else {
-                    // this user is not in a channel, so we need to recreate the
-                    // object
-                    ServerUser n_u = new ServerUser(newNick, u.getHost(),
-                            u.getUser(), server);
-                    server.removeUser(u);
-                    server.addUser(n_u);
+        } else if (code.equalsIgnoreCase("nick")) {
+            final String oldNick = message.getPrefixNick();
+            final String newNick = message.getParam(0);
+            if (oldNick.equals(server.getNick())) {
+                server.putNick(newNick);
+            }
+            final ServerUser u = server.findUser(oldNick);
+            if (u != null) {
+                // one object represents the user in every channel, so it is
+                // renamed once and each channel only needs to move its key
+                server.renameUser(u, newNick);
+                for (Channel c : u.getChannels()) {
+                    final ChannelUser user = c.getUser(oldNick);
+                    if (user != null) {
+                        c.renameUser(oldNick, user);
+                        server.eventManager.dispatchEvent(new ChannelUserEvent(this, c, user,
+                                ChannelUserEvent.USER_NICK_CHANGED, oldNick, newNick));
+                    }
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
             }
         }
         parseNumerics(message);
@@ -290,8 +291,8 @@ public class ServerMessageParser implements Runnable, EventGenerator {
     private void parseNumerics(RawMessage message) {
         String code = message.getCommand();
         if (code.equals(Numerics.CHANNEL_TOPIC)) {
-            String chanName = message.getRaw().split(" ")[3];
-            String topic = message.getRaw().split(" :", 2)[1].trim();
+            String chanName = message.getParam(1);
+            String topic = message.getTrailing().trim();
             Channel c = server.getChannel(chanName);
             if (!c.isRunning()) {
                 c.setup();
@@ -299,16 +300,15 @@ public class ServerMessageParser implements Runnable, EventGenerator {
             c.setTopic(topic);
 
         } else if (code.equals(Numerics.CHANNEL_TOPIC_SET)) {
-            String[] parts = message.getRaw().split(" ");
-            String chanName = parts[3];
-            String setter = parts[4];
+            String chanName = message.getParam(1);
+            String setter = message.getParam(2);
             /*
              * if(setter.contains("!")) { setter = setter.split("!")[0]; }
 			 */
             // would use the above code but we want the api to capture as much
             // info as possible
             // some servers send the mask, some just send the nick
-            String timestamp = parts[5];
+            String timestamp = message.getParam(3);
             Channel c = server.getChannel(chanName);
             if (!c.isRunning()) {
                 c.setup();
@@ -318,7 +318,109 @@ public class ServerMessageParser implements Runnable, EventGenerator {
         }
     }
 
+    /**
+     * Updates a user in a channel from a line of a WHO or WHOX reply.
+     *
+     * @param channel the channel the reply is for
+     * @param nick    the nick of the user
+     * @param user    the username of the user
+     * @param host    the host of the user
+     * @param flags   the flags of the user, e.g. <tt>G*@</tt>
+     * @param account the account the user is logged in to, <tt>0</tt> if
+     *                they aren't, or <tt>null</tt> if it wasn't asked for
+     */
+    private void syncWhoUser(final Channel channel, final String nick, final String user, final String host,
+                             final String flags, final String account) {
+        final PrefixTable table = server.getPrefixTable();
+        boolean away = false, oper = false, identified = false;
+        int prefixes = 0;
+        for (int i = 0; i < flags.length(); i++) {
+            final char c = flags.charAt(i);
+            if (c == 'G') {
+                away = true;
+            } else if (c == '*') {
+                oper = true;
+            } else if (c == 'r') {
+                identified = true;
+            } else if (table.indexOfSymbol(c) >= 0) {
+                prefixes |= 1 << table.indexOfSymbol(c);
+            }
+        }
+        if (account != null) {
+            identified = !account.equals("0");
+        }
+        channel.syncUser(nick, prefixes, user, host, away, oper, identified);
+    }
+
     public ServerSupportParser getServerSupport() {
         return serverSupport;
     }
+
+    /**
+     * Maps each command to the generators that handle it, in the order they
+     * were added. Numerics are looked up in an array, other commands in a map,
+     * and commands no generator declared fall back to the generators that
+     * accept any command.
+     */
+    private static final class GeneratorTable {
+        private final EventGenerator[][] numerics = new EventGenerator[1000][];
+        private final Map<String, EventGenerator[]> commands = new HashMap<String, EventGenerator[]>();
+        private final EventGenerator[] wildcards;
+
+        private GeneratorTable(final List<EventGenerator> generators) {
+            final List<EventGenerator> wildcards = new ArrayList<EventGenerator>();
+            final Set<String> declared = new LinkedHashSet<String>();
+            for (EventGenerator generator : generators) {
+                final GeneratorProperties properties = generator.getClass().getAnnotation(GeneratorProperties.class);
+                if (properties == null) {
+                    wildcards.add(generator);
+                } else {
+                    for (String command : properties.commands()) {
+                        declared.add(command.toUpperCase());
+                    }
+                }
+            }
+            this.wildcards = wildcards.toArray(new EventGenerator[wildcards.size()]);
+            for (String command : declared) {
+                final List<EventGenerator> handlers = new ArrayList<EventGenerator>();
+                for (EventGenerator generator : generators) {
+                    final GeneratorProperties properties = generator.getClass().getAnnotation(GeneratorProperties.class);
+                    if (properties == null || handles(properties, command)) {
+                        handlers.add(generator);
+                    }
+                }
+                final EventGenerator[] array = handlers.toArray(new EventGenerator[handlers.size()]);
+                final int numeric = new RawMessage(command, null).getNumeric();
+                if (numeric >= 0) {
+                    numerics[numeric] = array;
+                } else {
+                    commands.put(command, array);
+                }
+            }
+        }
+
+        private static boolean handles(final GeneratorProperties properties, final String command) {
+            for (String s : properties.commands()) {
+                if (s.equalsIgnoreCase(command)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private EventGenerator[] get(final RawMessage message) {
+            final int numeric = message.getNumeric();
+            EventGenerator[] handlers;
+            if (numeric >= 0) {
+                handlers = numerics[numeric];
+            } else {
+                final String command = message.getCommand();
+                handlers = commands.get(command);
+                if (handlers == null) {
+                    handlers = commands.get(command.toUpperCase());
+                }
+            }
+            return handlers == null ? wildcards : handlers;
+        }
+    }
 }
\ No newline at end of file
@@ -1,16 +1,27 @@
 package com.speed.irc.connection;
 
-import com.speed.irc.event.api.ApiEvent;
+import com.speed.irc.util.SerialExecutor;
 
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
- * Reads messages from the server and adds them to a queue. Encapsulates the
- * queue to prevent it being read and modified before the parser parses the
- * messages.
+ * Reads messages from the server and hands them to the parser as soon as they
+ * have been read. Connections backed by a {@link SocketChannel} are read
+ * without blocking by the selector thread of the server's
+ * {@link ConnectionManager}, which frames the bytes into lines and parses them
+ * in order on the shared worker pool. The selector is also used to finish
+ * writing any output the channel could not accept straight away. Other sockets,
+ * such as SSL sockets, are read line by line from their input stream on a
+ * thread of their own.
  * <p/>
  * This file is part of Speed's IRC API.
  * <p/>
@@ -30,89 +41,276 @@ import java.util.logging.Logger;
  * @author Shivam Mistry
  */
 public class ServerMessageReader implements Runnable {
+    /**
+     * The most reads that may wait to be parsed before the reader stops
+     * reading from the server.
+     */
+    public static final int MAX_PENDING_READS = 64;
+    private static final long RESUME_DELAY = 20;
     private final Server server;
-    private Queue<String> queue = new LinkedList<String>();
-    private volatile String current;
+    private final ServerMessageParser parser;
+    private final SocketChannel channel;
+    private final SerialExecutor lane;
+    private volatile SelectionKey key;
+    private volatile ChannelOutputStream output;
+    private volatile boolean writeRequested;
+    private volatile boolean paused;
+    private LineDecoder decoder;
+    private ByteBuffer buffer;
     protected volatile boolean running = true;
     protected Logger logger = Logger.getLogger(Logger.class.getName());
     protected boolean logging;
 
+    public ServerMessageReader(final Server server, final ServerMessageParser parser) {
+        this.server = server;
+        this.parser = parser;
+        this.channel = server.socket.getChannel();
+        this.lane = new SerialExecutor(server.getConnectionManager().getWorkers());
+        if (channel != null) {
+            decoder = new LineDecoder(Charset.defaultCharset());
+            buffer = ByteBuffer.allocate(8192);
+        }
+    }
+
     /**
-     * No public access to queue to prevent reading before the parser. Gets the
-     * next message to be read.
+     * Gets the channel read by this reader.
      *
-     * @return the next message
+     * @return the channel, or <tt>null</tt> if the socket is read using
+     * blocking IO
      */
-    protected String poll() {
-        return queue.poll();
+    protected SocketChannel getChannel() {
+        return channel;
     }
 
     /**
-     * Gets the next item on the queue without removing it from the queue.
+     * Gets the number of reads waiting to be parsed.
      *
-     * @return the next item on queue
+     * @return the number of reads waiting to be parsed
      */
-    public String peek() {
-        return queue.peek();
+    public int getPendingCount() {
+        return lane.size();
     }
 
     /**
-     * Checks to see if the queue is empty.
+     * Sets the stream whose pending output is written by this reader when the
+     * channel becomes writable.
      *
-     * @return true if they queue is empty, else false.
+     * @param output the output stream of the channel being read
      */
-    public boolean isEmpty() {
-        return queue.isEmpty();
+    protected void setOutput(final ChannelOutputStream output) {
+        this.output = output;
     }
 
     /**
-     * No public access to queue to prevent reading before the parser. Gets the
-     * queue
+     * Called by the connection manager once the channel has been registered
+     * with its selector.
      *
-     * @return the queue
+     * @param key the key of the channel
      */
-    protected Queue<String> getQueue() {
-        return queue;
+    protected void setKey(final SelectionKey key) {
+        this.key = key;
+        if (!running) {
+            key.cancel();
+        } else {
+            key.interestOps(interestOps());
+        }
     }
 
-    public ServerMessageReader(final Server server) {
-        this.server = server;
+    private int interestOps() {
+        return (paused ? 0 : SelectionKey.OP_READ) | (writeRequested ? SelectionKey.OP_WRITE : 0);
     }
 
-    public void run() {
+    /**
+     * Checks whether the server is sending lines faster than they can be
+     * parsed and dispatched.
+     *
+     * @return <tt>true</tt> if the reader should stop reading for now
+     */
+    private boolean isBacklogged() {
+        return lane.size() >= MAX_PENDING_READS || server.eventManager.isFull();
+    }
+
+    /**
+     * Checks whether reading has been paused because lines are being read
+     * faster than they can be parsed and dispatched.
+     *
+     * @return <tt>true</tt> if reading has been paused
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    private void resumeLater() {
+        if (!running) {
+            return;
+        }
         try {
-            while (server.isConnected() && running
-                    && (current = server.getReader().readLine()) != null) {
-                try {
-                    queue.add(current);
-                } catch (IllegalStateException e) {
-
-                    queue.clear();
-                    queue.add(current);
-                }
-                if (logging) {
-                    logger.info(current);
+            server.getConnectionManager().getWorkers().schedule(new Runnable() {
+                public void run() {
+                    if (!running) {
+                        return;
+                    }
+                    if (isBacklogged()) {
+                        resumeLater();
+                    } else {
+                        paused = false;
+                        server.getConnectionManager().setInterest(key, interestOps());
+                    }
                 }
-                if (current.startsWith("ERROR :Closing Link:")) {
-                    if (server.autoConnect && running) {
-                        try {
-                            Thread.sleep(5000);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                        server.connect();
-                        server.eventManager.dispatchEvent(new ApiEvent(
-                                ApiEvent.SERVER_DISCONNECTED, server, this));
-                        break;
+            }, RESUME_DELAY, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
+    /**
+     * Asks the reader to finish writing the pending output once the channel
+     * can accept it.
+     */
+    protected void requestWrite() {
+        writeRequested = true;
+        final SelectionKey key = this.key;
+        if (key != null) {
+            server.getConnectionManager().setInterest(key, interestOps());
+        }
+    }
+
+    /**
+     * Stops reading from the server.
+     */
+    protected void stop() {
+        running = false;
+        final SelectionKey key = this.key;
+        if (key != null) {
+            server.getConnectionManager().cancel(key);
+        }
+    }
+
+    /**
+     * Called by the selector thread when the channel has output waiting and
+     * can be written to.
+     *
+     * @throws IOException if the channel could not be written to
+     */
+    protected void writable() throws IOException {
+        if (output == null || output.writePending()) {
+            writeRequested = false;
+            key.interestOps(interestOps());
+        }
+    }
+
+    /**
+     * Called by the selector thread when the channel can be read from. Any
+     * complete lines are parsed on the worker pool, in the order they were
+     * read. If the lines are being read faster than they can be parsed and
+     * dispatched, reading is paused until the backlog clears.
+     *
+     * @throws IOException if the channel could not be read from
+     */
+    protected void readable() throws IOException {
+        final int read = channel.read(buffer);
+        if (read < 0) {
+            key.cancel();
+            closed();
+            return;
+        }
+        buffer.flip();
+        decoder.feed(buffer);
+        buffer.clear();
+        String line = decoder.nextLine();
+        if (line == null) {
+            return;
+        }
+        final List<String> lines = new ArrayList<String>();
+        do {
+            lines.add(line);
+        } while ((line = decoder.nextLine()) != null);
+        lane.execute(new Runnable() {
+            public void run() {
+                for (String line : lines) {
+                    if (!running || !handle(line)) {
+                        return;
                     }
                 }
             }
-        } catch (IOException e) {
+        });
+        if (!paused && isBacklogged()) {
+            paused = true;
+            key.interestOps(interestOps());
+            resumeLater();
+        }
+    }
 
+    /**
+     * Called by the selector thread when the channel could no longer be read,
+     * or the server closed the connection. The connection is closed, then
+     * made again if auto reconnecting is on.
+     */
+    protected void closed() {
+        if (running) {
+            lane.execute(new Runnable() {
+                public void run() {
+                    disconnected();
+                }
+            });
+        }
+    }
+
+    /**
+     * Handles the connection being lost, reconnecting if auto reconnecting is
+     * on or quitting otherwise.
+     */
+    private void disconnected() {
+        if (!running) {
+            return;
+        }
+        if (server.autoConnect) {
+            server.reconnect();
+        } else {
             server.quit();
+        }
+    }
 
+    public void run() {
+        try {
+            String line;
+            while (server.isConnected() && running) {
+                if ((line = server.getReader().readLine()) == null) {
+                    disconnected();
+                    break;
+                }
+                if (!handle(line)) {
+                    break;
+                }
+                while (running && server.eventManager.isFull()) {
+                    Thread.sleep(RESUME_DELAY);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            disconnected();
         }
+    }
 
+    /**
+     * Passes a line read from the server to the parser.
+     *
+     * @param line the line that was read
+     * @return <tt>true</tt> if the reader should carry on reading,
+     * <tt>false</tt> if the connection has been replaced
+     */
+    private boolean handle(final String line) {
+        if (logging) {
+            logger.info(line);
+        }
+        parser.process(line);
+        if (line.startsWith("ERROR :Closing Link:")) {
+            if (server.autoConnect && running) {
+                server.reconnect();
+                return false;
+            }
+        }
+        return true;
     }
 
 }
@@ -1,6 +1,7 @@
 package com.speed.irc.connection;
 
 import com.speed.irc.types.RawMessage;
+import com.speed.irc.util.CaseMapping;
 import com.speed.irc.util.Numerics;
 
 import java.util.Properties;
@@ -32,6 +33,7 @@ public class ServerSupportParser {
     private Properties settings = new Properties();
 
     private static final String CHANTYPES = "CHANTYPES";
+    private static final String DEFAULT_CHANMODES = "beI,k,l,imnpst";
 
     public ServerSupportParser() {
         this.messages = new RawMessage[0];
@@ -53,28 +55,32 @@ public class ServerSupportParser {
 
     public void parse(RawMessage msg) {
         addMessage(msg);
-        String message = msg.getRaw();
-        if (msg.getRaw().contains(" :are supported by this server")) {
-            message = msg.getRaw()
-                    .replace(" :are supported by this server", "").trim();
-
-        }
-        String[] parts = message.split(" ");
-        for (String s : parts) {
-            String key = null;
-            String value = null;
-            if (s.contains("=")) {
-                String[] t = s.split("=", 2);
-                key = t[0];
-                value = t[1];
+        // the first parameter is our nick and the trailing one is a description
+        final int end = msg.hasTrailing() ? msg.getParamCount() - 1 : msg.getParamCount();
+        for (int i = 1; i < end; i++) {
+            final String s = msg.getParam(i);
+            final int eq = s.indexOf('=');
+            if (s.startsWith("-")) {
+                settings.remove(s.substring(1));
+            } else if (eq >= 0) {
+                settings.put(s.substring(0, eq), s.substring(eq + 1));
             } else {
-                key = s;
-                value = s;
+                settings.put(s, s);
             }
-            settings.put(key, value);
         }
     }
 
+    /**
+     * Gets the casemapping nicks and channel names are compared with, from
+     * the CASEMAPPING setting.
+     *
+     * @return the casemapping, {@link CaseMapping#RFC1459} if the server
+     * doesn't say
+     */
+    public CaseMapping getCaseMapping() {
+        return CaseMapping.forName(settings.getProperty("CASEMAPPING"));
+    }
+
     public Properties getSettings() {
         return settings;
     }
@@ -87,8 +93,88 @@ public class ServerSupportParser {
         }
     }
 
+    /**
+     * Gets the most targets a command may be sent to at once, from the
+     * TARGMAX setting or, failing that, the MAXTARGETS setting.
+     *
+     * @param command the command, e.g. <tt>PRIVMSG</tt>
+     * @return the most targets the command may have, {@link Integer#MAX_VALUE}
+     * if there is no limit, or <tt>1</tt> if the server doesn't say
+     */
+    public int getMaxTargets(final String command) {
+        final String targmax = settings.getProperty("TARGMAX");
+        if (targmax != null) {
+            for (String entry : targmax.split(",")) {
+                final int colon = entry.indexOf(':');
+                if (colon > 0 && entry.substring(0, colon).equalsIgnoreCase(command)) {
+                    return colon == entry.length() - 1 ? Integer.MAX_VALUE : parseCount(entry.substring(colon + 1));
+                }
+            }
+            return 1;
+        }
+        final String maxTargets = settings.getProperty("MAXTARGETS");
+        return maxTargets == null || maxTargets.equals("MAXTARGETS") ? 1 : parseCount(maxTargets);
+    }
+
+    private static int parseCount(final String s) {
+        try {
+            return Math.max(1, Integer.parseInt(s));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Gets the most modes with a parameter that may be set in a single MODE
+     * command, from the MODES setting.
+     *
+     * @return the most modes with a parameter, {@link Integer#MAX_VALUE} if
+     * there is no limit, or <tt>3</tt> if the server doesn't say
+     */
+    public int getMaxModes() {
+        final String modes = settings.getProperty("MODES");
+        if (modes == null) {
+            return 3;
+        }
+        return modes.equals("MODES") ? Integer.MAX_VALUE : parseCount(modes);
+    }
+
+    /**
+     * Checks whether the server supports WHOX, which lets a WHO request say
+     * which fields should be sent back.
+     *
+     * @return <tt>true</tt> if the server sent the WHOX setting
+     */
+    public boolean isWhoxSupported() {
+        return settings.containsKey("WHOX");
+    }
+
+    /**
+     * Gets which type of channel mode a mode is, from the CHANMODES setting.
+     * Type A modes are lists, and type B modes always have a parameter. Type
+     * C modes only have a parameter when they are set, and type D modes never
+     * have one.
+     *
+     * @param mode the mode letter
+     * @return <tt>0</tt> to <tt>3</tt> for types A to D, or <tt>-1</tt> if the
+     * mode isn't listed
+     */
+    public int getChanModeType(final char mode) {
+        final String chanModes = settings.getProperty("CHANMODES", DEFAULT_CHANMODES);
+        int type = 0;
+        for (int i = 0; i < chanModes.length() && type < 4; i++) {
+            final char c = chanModes.charAt(i);
+            if (c == ',') {
+                type++;
+            } else if (c == mode) {
+                return type;
+            }
+        }
+        return -1;
+    }
+
     public char[][] getChanModes() {
-        String s = getSettings().getProperty("CHANMODES");
+        String s = getSettings().getProperty("CHANMODES", DEFAULT_CHANMODES);
         String[] modes = s.split(",", 4);
         return new char[][]{modes[0].toCharArray(), modes[1].toCharArray(),
                 modes[2].toCharArray(), modes[3].toCharArray()};
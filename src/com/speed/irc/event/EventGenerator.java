@@ -3,7 +3,9 @@ package com.speed.irc.event;
 import com.speed.irc.types.RawMessage;
 
 /**
- * Represents an EventGenerator submitted to the parser.
+ * Represents an EventGenerator submitted to the parser. Generators can use
+ * {@link GeneratorProperties} to declare the commands they handle, otherwise
+ * they are offered every message.
  * <p/>
  * This file is part of Speed's IRC API.
  * <p/>
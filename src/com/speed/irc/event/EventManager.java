@@ -1,14 +1,33 @@
 package com.speed.irc.event;
 
+import com.speed.irc.event.channel.ChannelEvent;
+import com.speed.irc.event.message.NoticeEvent;
+import com.speed.irc.event.message.PrivateMessageEvent;
+import com.speed.irc.event.message.RawMessageEvent;
+import com.speed.irc.types.Channel;
+import com.speed.irc.types.Notice;
+import com.speed.irc.types.Privmsg;
+import com.speed.irc.types.RawMessage;
+import com.speed.irc.util.CaseMapping;
+import com.speed.irc.util.SerialExecutor;
+import com.speed.irc.util.VirtualThreads;
+
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages events in a queue, and sends them to the appropriate listener.
- * Also manages a list of listeners.
+ * Also manages a list of listeners. The listeners accepting each class of event
+ * are worked out once and cached until a listener is added or removed.
  * <p/>
+ * Listeners can also be added for a single channel, in which case they are
+ * only sent the {@link ChannelEvent}s for that channel, found by the name of
+ * the channel rather than by asking every listener.
  * <p/>
  * This file is part of Speed's IRC API.
  * <p/>
@@ -29,8 +48,279 @@ import java.util.concurrent.LinkedBlockingQueue;
  */
 public class EventManager implements Runnable {
 
-    private List<IRCEventListener> listeners = new CopyOnWriteArrayList<IRCEventListener>();
-    private BlockingQueue<IRCEvent> eventQueue = new LinkedBlockingQueue<IRCEvent>();
+    /**
+     * The ways events can be dispatched to listeners.
+     */
+    public enum DispatchMode {
+        /**
+         * Every event is dispatched on a single thread, in the order the events
+         * were added to the queue.
+         */
+        SEQUENTIAL,
+        /**
+         * Events are partitioned by their channel (or the nick of the sender
+         * for private messages and notices) onto a number of lanes. Events
+         * with the same key are dispatched in order, while events for different
+         * keys may be dispatched at the same time.
+         */
+        KEYED,
+        /**
+         * Every listener is called on a thread of its own, a virtual thread if
+         * the JVM supports them, so listeners which block don't hold up other
+         * listeners. Events are not dispatched in any particular order, except
+         * to the {@link Channel}s themselves, which are sent each event in
+         * order before the other listeners so the users of each channel are
+         * kept right. Once the limit of listeners running at once is reached,
+         * the event queue isn't drained until one of them returns.
+         */
+        CONCURRENT
+    }
+
+    /**
+     * What happens when an event is dispatched while the event queue is full.
+     * The reader of the server stops reading until the queue has room again
+     * whatever the policy, so events are only lost when the policy says so.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The event is queued anyway, and the reader of the server stops
+         * reading until the queue has room again.
+         */
+        BLOCK,
+        /**
+         * The oldest queued {@link RawMessageEvent} is dropped to make room.
+         * If there are none, raw message events are dropped and other events
+         * are queued anyway.
+         */
+        DROP_OLDEST_RAW,
+        /**
+         * Events of the overflow classes are dropped, the event being
+         * dispatched if it is one of them or otherwise the oldest queued one.
+         *
+         * @see #setOverflowClasses(Class[])
+         */
+        DROP_CLASSES,
+        /**
+         * An event of one of the overflow classes replaces the oldest queued
+         * event of the same class with the same key, i.e. for the same channel
+         * or sender.
+         *
+         * @see #setOverflowClasses(Class[])
+         */
+        COALESCE
+    }
+
+    /**
+     * The casemapping keys are folded with. rfc1459 treats the most names as
+     * equal, so names that are equal on any server share a key.
+     */
+    private static final CaseMapping KEY_MAPPING = CaseMapping.RFC1459;
+
+    private final List<IRCEventListener> listeners = new CopyOnWriteArrayList<IRCEventListener>();
+    private final BlockingQueue<IRCEvent> eventQueue = new LinkedBlockingQueue<IRCEvent>();
+    private volatile ConcurrentMap<Class<?>, IRCEventListener[]> routes = new ConcurrentHashMap<Class<?>, IRCEventListener[]>();
+    private final ConcurrentMap<String, ChannelListeners> channelListeners = new ConcurrentHashMap<String, ChannelListeners>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile Executor executor;
+    private volatile DispatchMode mode = DispatchMode.SEQUENTIAL;
+    private volatile SerialExecutor[] lanes = new SerialExecutor[0];
+    private volatile ExecutorService listenerExecutor;
+    private volatile Semaphore inFlight;
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<Runnable>();
+    private volatile int maxInFlight;
+    private volatile int capacity = Integer.MAX_VALUE;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private volatile Class<?>[] overflowClasses = {RawMessageEvent.class};
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Sets how events are dispatched to listeners.
+     *
+     * @param mode  the dispatch mode
+     * @param count the number of lanes for {@link DispatchMode#KEYED}, the
+     *              most listeners that may run at once for
+     *              {@link DispatchMode#CONCURRENT}, ignored otherwise
+     * @see DispatchMode
+     */
+    public synchronized void setDispatchMode(final DispatchMode mode, final int count) {
+        if (mode != DispatchMode.SEQUENTIAL && count < 1) {
+            throw new IllegalArgumentException("The count must be positive: " + count);
+        }
+        final ExecutorService old = listenerExecutor;
+        this.mode = mode;
+        this.lanes = mode == DispatchMode.KEYED ? createLanes(count) : new SerialExecutor[0];
+        if (mode == DispatchMode.CONCURRENT) {
+            inFlight = new Semaphore(count);
+            maxInFlight = count;
+            listenerExecutor = VirtualThreads.newThreadPerTaskExecutor("Event listener");
+        } else {
+            inFlight = null;
+            maxInFlight = 0;
+            listenerExecutor = null;
+        }
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Gets the number of listeners that are running on threads of their own
+     * when listeners are called concurrently.
+     *
+     * @return the number of listeners running, <tt>0</tt> if listeners are not
+     * called concurrently
+     */
+    public int getInFlightCount() {
+        final Semaphore inFlight = this.inFlight;
+        return inFlight == null ? 0 : maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Gets how events are dispatched to listeners.
+     *
+     * @return the dispatch mode
+     */
+    public DispatchMode getDispatchMode() {
+        return mode;
+    }
+
+    /**
+     * Gets the number of events waiting on each lane when events are
+     * dispatched by key.
+     *
+     * @return the number of events waiting on each lane, empty if events are
+     * not dispatched by key
+     */
+    public int[] getLaneQueueDepths() {
+        final SerialExecutor[] lanes = this.lanes;
+        final int[] depths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            depths[i] = lanes[i].size();
+        }
+        return depths;
+    }
+
+    private SerialExecutor[] createLanes(final int count) {
+        final SerialExecutor[] lanes = new SerialExecutor[count];
+        final Executor laneExecutor = new Executor() {
+            public void execute(final Runnable command) {
+                final Executor executor = EventManager.this.executor;
+                if (executor == null) {
+                    command.run();
+                } else {
+                    executor.execute(command);
+                }
+            }
+        };
+        for (int i = 0; i < count; i++) {
+            lanes[i] = new SerialExecutor(laneExecutor);
+        }
+        return lanes;
+    }
+
+    /**
+     * Limits the number of events waiting to be dispatched. By default the
+     * event queue is unbounded.
+     *
+     * @param capacity the most events that may wait to be dispatched, including
+     *                 the events waiting on lanes
+     * @param policy   what to do with events dispatched while the queue is full
+     */
+    public void setCapacity(final int capacity, final OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.overflowPolicy = policy;
+    }
+
+    /**
+     * Gets the most events that may wait to be dispatched.
+     *
+     * @return the capacity of the event queue
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets what happens to events dispatched while the queue is full.
+     *
+     * @return the overflow policy
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Sets the event classes that may be dropped or coalesced when the queue
+     * is full. By default only {@link RawMessageEvent}s may be.
+     *
+     * @param classes the classes of events that may be dropped or coalesced
+     * @see OverflowPolicy#DROP_CLASSES
+     * @see OverflowPolicy#COALESCE
+     */
+    public void setOverflowClasses(final Class<?>... classes) {
+        overflowClasses = classes.clone();
+    }
+
+    /**
+     * Gets the number of events waiting to be dispatched, including the events
+     * waiting on lanes.
+     *
+     * @return the number of events waiting to be dispatched
+     */
+    public int getQueueSize() {
+        int size = eventQueue.size();
+        for (SerialExecutor lane : lanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    /**
+     * Checks whether the event queue is full.
+     *
+     * @return <tt>true</tt> if as many events as the capacity allows are
+     * waiting to be dispatched
+     */
+    public boolean isFull() {
+        return capacity != Integer.MAX_VALUE && getQueueSize() >= capacity;
+    }
+
+    /**
+     * Gets the number of events that have been dropped because the queue was
+     * full.
+     *
+     * @return the number of dropped events
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Gets the number of events that have been replaced by newer events
+     * because the queue was full.
+     *
+     * @return the number of coalesced events
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Sets the executor events are dispatched on. Once set, the queue is
+     * drained as soon as events are added to it rather than waiting for
+     * {@link #run()} to be called.
+     *
+     * @param executor the executor to dispatch events on, or <tt>null</tt> to
+     *                 only dispatch events when {@link #run()} is called
+     */
+    public void setExecutor(final Executor executor) {
+        this.executor = executor;
+        schedule();
+    }
 
     /**
      * Adds an event to the event queue.
@@ -38,7 +328,83 @@ public class EventManager implements Runnable {
      * @param event the event to be processed by the event queue.
      */
     public void dispatchEvent(final IRCEvent event) {
-        eventQueue.offer(event);
+        if (!isFull() || offerFull(event)) {
+            eventQueue.offer(event);
+        }
+        schedule();
+    }
+
+    /**
+     * Makes room for an event dispatched while the queue is full.
+     *
+     * @param event the event being dispatched
+     * @return <tt>true</tt> if the event should be queued, <tt>false</tt> if it
+     * has been dropped
+     */
+    private synchronized boolean offerFull(final IRCEvent event) {
+        switch (overflowPolicy) {
+            case DROP_OLDEST_RAW:
+                if (removeOldest(RawMessageEvent.class, null, false) || !(event instanceof RawMessageEvent)) {
+                    return true;
+                }
+                dropped.incrementAndGet();
+                return false;
+            case DROP_CLASSES:
+                if (isOverflowClass(event.getClass())) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                for (Class<?> c : overflowClasses) {
+                    if (removeOldest(c, null, false)) {
+                        break;
+                    }
+                }
+                return true;
+            case COALESCE:
+                if (isOverflowClass(event.getClass())) {
+                    removeOldest(event.getClass(), getKey(event), true);
+                }
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    private boolean isOverflowClass(final Class<?> clazz) {
+        for (Class<?> c : overflowClasses) {
+            if (c.isAssignableFrom(clazz)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean removeOldest(final Class<?> clazz, final String key, final boolean coalesce) {
+        final Iterator<IRCEvent> it = eventQueue.iterator();
+        while (it.hasNext()) {
+            final IRCEvent queued = it.next();
+            if (coalesce ? queued.getClass() == clazz && equal(key, getKey(queued)) : clazz.isInstance(queued)) {
+                it.remove();
+                (coalesce ? coalesced : dropped).incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean equal(final String a, final String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void schedule() {
+        final Executor executor = this.executor;
+        if (executor != null && !eventQueue.isEmpty() && scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+            }
+        }
     }
 
     /**
@@ -48,6 +414,7 @@ public class EventManager implements Runnable {
      */
     public void addListener(final IRCEventListener listener) {
         listeners.add(listener);
+        routes = new ConcurrentHashMap<Class<?>, IRCEventListener[]>();
     }
 
     /**
@@ -58,30 +425,278 @@ public class EventManager implements Runnable {
      * <tt>false</tt> if it wasn't
      */
     public boolean removeListener(final IRCEventListener listener) {
-        return listeners.remove(listener);
+        if (listeners.remove(listener)) {
+            routes = new ConcurrentHashMap<Class<?>, IRCEventListener[]>();
+            return true;
+        }
+        return false;
     }
 
+    /**
+     * Adds an event listener that is only sent the events for one channel.
+     *
+     * @param channel  the channel to listen to
+     * @param listener the listener to be added to this event manager
+     */
+    public void addChannelListener(final Channel channel, final IRCEventListener listener) {
+        final String key = KEY_MAPPING.fold(channel.getName());
+        synchronized (channelListeners) {
+            ChannelListeners keyed = channelListeners.get(key);
+            if (keyed == null) {
+                keyed = new ChannelListeners();
+                channelListeners.put(key, keyed);
+            }
+            keyed.listeners.add(listener);
+            keyed.routes = new ConcurrentHashMap<Class<?>, IRCEventListener[]>();
+        }
+    }
+
+    /**
+     * Removes an event listener that was added for one channel. Only the
+     * listener itself is removed, not other listeners equal to it, as
+     * channels are equal to any other channel with the same name.
+     *
+     * @param channel  the channel the listener was added for
+     * @param listener the listener to be removed
+     * @return <tt>true</tt> if the listener was successfully removed,
+     * <tt>false</tt> if it wasn't
+     */
+    public boolean removeChannelListener(final Channel channel, final IRCEventListener listener) {
+        final String key = KEY_MAPPING.fold(channel.getName());
+        synchronized (channelListeners) {
+            final ChannelListeners keyed = channelListeners.get(key);
+            if (keyed == null) {
+                return false;
+            }
+            int index = -1;
+            for (int i = 0; i < keyed.listeners.size(); i++) {
+                if (keyed.listeners.get(i) == listener) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return false;
+            }
+            keyed.listeners.remove(index);
+            if (keyed.listeners.isEmpty()) {
+                channelListeners.remove(key);
+            } else {
+                keyed.routes = new ConcurrentHashMap<Class<?>, IRCEventListener[]>();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Dispatches every event in the queue to the listeners that accept it.
+     */
     public void run() {
-        IRCEvent e = eventQueue.poll();
-        if (e != null) {
-            for (IRCEventListener listener : listeners) {
-                for (Class<?> clz : listener.getClass().getInterfaces()) {
-                    if (clz.getAnnotation(ListenerProperties.class) != null) {
+        while (true) {
+            IRCEvent e;
+            while (!isWaiting() && (e = eventQueue.poll()) != null) {
+                final SerialExecutor[] lanes = this.lanes;
+                if (lanes.length == 0) {
+                    fire(e);
+                } else {
+                    final IRCEvent event = e;
+                    lanes[laneOf(event, lanes.length)].execute(new Runnable() {
+                        public void run() {
+                            fire(event);
+                        }
+                    });
+                }
+            }
+            scheduled.set(false);
+            // a listener that returns schedules the queue again once none wait
+            if (eventQueue.isEmpty() || isWaiting() || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Checks whether listeners are waiting for others to return before they
+     * can be called concurrently, in which case no more events are taken from
+     * the queue.
+     */
+    private boolean isWaiting() {
+        return listenerExecutor != null && !waiting.isEmpty();
+    }
+
+    private void fire(final IRCEvent e) {
+        if (e instanceof ChannelEvent && !channelListeners.isEmpty()) {
+            final ChannelListeners keyed = channelListeners.get(getKey(e));
+            if (keyed != null) {
+                fire(e, getRoute(keyed.listeners, keyed.routes, e.getClass()));
+            }
+        }
+        fire(e, getRoute(listeners, routes, e.getClass()));
+    }
+
+    private void fire(final IRCEvent e, final IRCEventListener[] route) {
+        boolean added = false;
+        for (final IRCEventListener listener : route) {
+            // channels keep their users from the events, so they need them in order
+            if (listenerExecutor == null || listener instanceof Channel) {
+                call(e, listener);
+            } else {
+                waiting.offer(new Runnable() {
+                    public void run() {
+                        call(e, listener);
+                    }
+                });
+                added = true;
+            }
+        }
+        if (added) {
+            startWaiting();
+        }
+    }
+
+    /**
+     * Calls the waiting listeners on threads of their own, until the limit of
+     * listeners running at once is reached.
+     */
+    private void startWaiting() {
+        final ExecutorService listenerExecutor = this.listenerExecutor;
+        final Semaphore inFlight = this.inFlight;
+        if (listenerExecutor == null) {
+            // left over from when listeners were called concurrently
+            Runnable call;
+            while ((call = waiting.poll()) != null) {
+                call.run();
+            }
+            return;
+        }
+        while (!waiting.isEmpty() && inFlight.tryAcquire()) {
+            final Runnable call = waiting.poll();
+            if (call == null) {
+                inFlight.release();
+                break;
+            }
+            try {
+                listenerExecutor.execute(new Runnable() {
+                    public void run() {
                         try {
-                            ListenerProperties properties = clz.getAnnotation(ListenerProperties.class);
-                            for (Class<? extends IRCEvent> clazz : properties.events()) {
-                                if (e.getClass().isAssignableFrom(clazz)) {
-                                    e.callListener(listener);
-                                }
-                            }
-                        } catch (Exception e1) {
-                            this.dispatchEvent(new com.speed.irc.event.api.ExceptionEvent(e1, this, null));
-                            e1.printStackTrace();
+                            call.run();
+                        } finally {
+                            inFlight.release();
+                            startWaiting();
+                            schedule();
                         }
                     }
+                });
+            } catch (RejectedExecutionException ex) {
+                inFlight.release();
+                call.run();
+            }
+        }
+    }
+
+    private void call(final IRCEvent e, final IRCEventListener listener) {
+        try {
+            e.callListener(listener);
+        } catch (Exception e1) {
+            this.dispatchEvent(new com.speed.irc.event.api.ExceptionEvent(e1, this, null));
+            e1.printStackTrace();
+        }
+    }
+
+    private static int laneOf(final IRCEvent e, final int lanes) {
+        final String key = getKey(e);
+        if (key == null) {
+            return 0;
+        }
+        final int h = key.hashCode();
+        return ((h ^ (h >>> 16)) & 0x7fffffff) % lanes;
+    }
+
+    /**
+     * Gets the key events are partitioned by when they are dispatched by key.
+     *
+     * @param e the event
+     * @return the name of the channel the event is for, the nick of the sender
+     * of private messages and notices, or <tt>null</tt> if the event has no key
+     */
+    protected static String getKey(final IRCEvent e) {
+        if (e instanceof ChannelEvent) {
+            return KEY_MAPPING.fold(((ChannelEvent) e).getChannel().getName());
+        } else if (e instanceof PrivateMessageEvent) {
+            final Privmsg msg = ((PrivateMessageEvent) e).getMessage();
+            if (msg.getSender() == null || msg.isChannelMessage()) {
+                return KEY_MAPPING.fold(msg.getConversableName());
+            }
+            return KEY_MAPPING.fold(msg.getSender());
+        } else if (e instanceof NoticeEvent) {
+            final Notice notice = ((NoticeEvent) e).getNotice();
+            final String sender = notice.getSenderNick();
+            return KEY_MAPPING.fold(sender == null ? notice.getTargetName() : sender.split("!")[0]);
+        } else if (e instanceof RawMessageEvent) {
+            final RawMessage message = ((RawMessageEvent) e).getMessage();
+            final String nick = message.getPrefixNick();
+            return nick == null ? null : KEY_MAPPING.fold(nick);
+        }
+        return null;
+    }
+
+    /**
+     * Gets the listeners that accept an event class, compiling the route the
+     * first time the class is seen since the listeners last changed.
+     *
+     * @param listeners the listeners to choose from
+     * @param routes    the routes compiled since the listeners last changed
+     * @param type      the class of the event
+     * @return the listeners which accept the event
+     */
+    private static IRCEventListener[] getRoute(final List<IRCEventListener> listeners,
+                                               final ConcurrentMap<Class<?>, IRCEventListener[]> routes,
+                                               final Class<?> type) {
+        IRCEventListener[] route = routes.get(type);
+        if (route == null) {
+            final List<IRCEventListener> accepted = new ArrayList<IRCEventListener>();
+            for (IRCEventListener listener : listeners) {
+                if (accepts(listener.getClass(), type)) {
+                    accepted.add(listener);
                 }
             }
+            route = accepted.toArray(new IRCEventListener[accepted.size()]);
+            routes.put(type, route);
         }
+        return route;
+    }
+
+    /**
+     * Checks whether any of the {@link ListenerProperties} of the interfaces
+     * implemented by a listener class, or its superclasses, declare an event
+     * class related to the supplied one.
+     */
+    private static boolean accepts(final Class<?> listenerClass, final Class<?> type) {
+        for (Class<?> c = listenerClass; c != null; c = c.getSuperclass()) {
+            for (Class<?> clz : c.getInterfaces()) {
+                if (declares(clz, type)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean declares(final Class<?> listenerInterface, final Class<?> type) {
+        final ListenerProperties properties = listenerInterface.getAnnotation(ListenerProperties.class);
+        if (properties != null) {
+            for (Class<? extends IRCEvent> clazz : properties.events()) {
+                if (type.isAssignableFrom(clazz) || clazz.isAssignableFrom(type)) {
+                    return true;
+                }
+            }
+        }
+        for (Class<?> clz : listenerInterface.getInterfaces()) {
+            if (declares(clz, type)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -92,4 +707,12 @@ public class EventManager implements Runnable {
 
     }
 
+
+    /**
+     * The listeners added for one channel, and their routes.
+     */
+    private static final class ChannelListeners {
+        private final List<IRCEventListener> listeners = new CopyOnWriteArrayList<IRCEventListener>();
+        private volatile ConcurrentMap<Class<?>, IRCEventListener[]> routes = new ConcurrentHashMap<Class<?>, IRCEventListener[]>();
+    }
 }
@@ -31,9 +31,10 @@ public abstract class ChannelEvent implements IRCEvent {
      * Constants for the ChannelEvent#getCode() method,
      * #TOPIC_CHANGED means the event was dispatched because the topic changed
      * #MODE_CHANGED means the event was dispatched because a channel mode was changed
+     * #USERS_SYNCED means the event was dispatched because the users of a channel were synchronised
      */
     public static final int TOPIC_CHANGED = 10,
-            MODE_CHANGED = 11;
+            MODE_CHANGED = 11, USERS_SYNCED = 12;
     private final int code;
     private final Channel channel;
     private String[] args;
@@ -96,7 +97,9 @@ public abstract class ChannelEvent implements IRCEvent {
     }
 
     public void callListener(IRCEventListener listener) {
-        if (listener instanceof ChannelUserListener
+        if (listener instanceof ChannelSyncListener && this instanceof ChannelSyncEvent) {
+            ((ChannelSyncListener) listener).channelUsersSynced((ChannelSyncEvent) this);
+        } else if (listener instanceof ChannelUserListener
                 && this instanceof ChannelUserEvent) {
             final ChannelUserListener l = (ChannelUserListener) listener;
             final ChannelUserEvent event = (ChannelUserEvent) this;
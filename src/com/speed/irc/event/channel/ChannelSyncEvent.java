@@ -0,0 +1,71 @@
+package com.speed.irc.event.channel;
+
+import com.speed.irc.types.Channel;
+import com.speed.irc.types.ChannelUser;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Dispatched once a NAMES or WHO reply for a channel has been read, if the
+ * users in the channel differ from the users that were known. Only the users
+ * that joined, left or changed while they weren't being watched are given.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class ChannelSyncEvent extends ChannelEvent {
+    private final Collection<ChannelUser> added, removed, changed;
+
+    public ChannelSyncEvent(final Channel channel, final Object source, final Collection<ChannelUser> added,
+                            final Collection<ChannelUser> removed, final Collection<ChannelUser> changed) {
+        super(channel, ChannelEvent.USERS_SYNCED, source);
+        this.added = Collections.unmodifiableCollection(added);
+        this.removed = Collections.unmodifiableCollection(removed);
+        this.changed = Collections.unmodifiableCollection(changed);
+    }
+
+    /**
+     * Gets the users that were found in the channel but weren't known to be
+     * in it.
+     *
+     * @return the users added to the channel
+     */
+    public Collection<ChannelUser> getAddedUsers() {
+        return added;
+    }
+
+    /**
+     * Gets the users that were known to be in the channel but weren't found
+     * in it.
+     *
+     * @return the users removed from the channel
+     */
+    public Collection<ChannelUser> getRemovedUsers() {
+        return removed;
+    }
+
+    /**
+     * Gets the users whose access modes, username, host, or away, oper or
+     * identified status were found to have changed.
+     *
+     * @return the users that were updated
+     */
+    public Collection<ChannelUser> getChangedUsers() {
+        return changed;
+    }
+}
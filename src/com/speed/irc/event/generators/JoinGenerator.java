@@ -1,6 +1,7 @@
 package com.speed.irc.event.generators;
 
 import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.GeneratorProperties;
 import com.speed.irc.event.IRCEvent;
 import com.speed.irc.event.channel.ChannelUserEvent;
 import com.speed.irc.types.Channel;
@@ -27,6 +28,7 @@ import com.speed.irc.types.RawMessage;
  *
  * @author Shivam Mistry
  */
+@GeneratorProperties(commands = "JOIN")
 public class JoinGenerator implements EventGenerator {
 
     public boolean accept(RawMessage raw) {
@@ -34,14 +36,10 @@ public class JoinGenerator implements EventGenerator {
     }
 
     public IRCEvent generate(RawMessage raw) {
-        final String[] parts = raw.getRaw().split("!");
-        final String nick = parts[0];
-        final String user = parts[1].split("@")[0];
-        final String host = parts[1].split("@")[1].split(" ")[0];
-        String chan = raw.getRaw().split(" ")[2];
-        if (raw.getRaw().split(" ")[2].startsWith(":")) {
-            chan = chan.substring(1);
-        }
+        final String nick = raw.getPrefixNick();
+        final String user = raw.getPrefixUser();
+        final String host = raw.getPrefixHost();
+        final String chan = raw.getParam(0);
         Channel channel = raw.getServer().getChannel(chan);
         if (channel == null) {
             channel = new Channel(chan, raw.getServer());
@@ -49,10 +47,11 @@ public class JoinGenerator implements EventGenerator {
         } else if (!channel.isRunning()) {
             channel.setup();
         }
-        if (channel.getUser(nick) != null) {
-            channel.removeChannelUser(channel.getUser(nick));
-        }
         final ChannelUser u = new ChannelUser(nick, "", user, host, channel);
+        final ChannelUser old = channel.getUser(nick);
+        if (old != null) {
+            channel.removeChannelUser(old);
+        }
         return new ChannelUserEvent(this, channel, u,
                 ChannelUserEvent.USER_JOINED);
     }
@@ -1,6 +1,7 @@
 package com.speed.irc.event.generators;
 
 import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.GeneratorProperties;
 import com.speed.irc.event.IRCEvent;
 import com.speed.irc.event.channel.ChannelUserEvent;
 import com.speed.irc.types.Channel;
@@ -27,6 +28,7 @@ import com.speed.irc.types.RawMessage;
  *
  * @author Shivam Mistry
  */
+@GeneratorProperties(commands = "KICK")
 public class KickGenerator implements EventGenerator {
 
 	public boolean accept(RawMessage raw) {
@@ -34,24 +36,19 @@ public class KickGenerator implements EventGenerator {
 	}
 
 	public IRCEvent generate(RawMessage raw) {
-		Channel channel = raw.getServer().getChannel(
-				raw.getRaw().split(" ")[2]);
+		Channel channel = raw.getServer().getChannel(raw.getParam(0));
 		if (channel == null) {
 			channel = new Channel(raw.getTarget(), raw.getServer());
 			channel.setup();
 		}
-		ChannelUser user = channel.getUser(raw.getRaw().split(" ")[3]);
+		final String nick = raw.getParam(1);
+		ChannelUser user = channel.getUser(nick);
 		if (user == null) {
-			user = new ChannelUser(raw.getRaw().split(" ")[3], null, null, null, channel);
+			user = new ChannelUser(nick, "", null, null, channel);
 			channel.addChannelUser(user);
 		}
-		String kickMsg = "";
-		String[] parts = raw.getRaw().split(" :", 2);
-		if (parts.length > 1) {
-			kickMsg = parts[1];
-		}
-		System.out.println(user);
-		return new ChannelUserEvent(this, channel, user, raw.getSender().split(
-				"!")[0].trim(), ChannelUserEvent.USER_KICKED, kickMsg);
+		final String kickMsg = raw.getParamCount() > 2 ? raw.getParam(2) : "";
+		return new ChannelUserEvent(this, channel, user, raw.getPrefixNick(),
+				ChannelUserEvent.USER_KICKED, kickMsg);
 	}
 }
@@ -2,11 +2,14 @@ package com.speed.irc.event.generators;
 
 import com.speed.irc.connection.Server;
 import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.GeneratorProperties;
 import com.speed.irc.event.IRCEvent;
 import com.speed.irc.event.channel.ModeChangedEvent;
 import com.speed.irc.types.Channel;
 import com.speed.irc.types.ChannelUser;
 import com.speed.irc.types.Mask;
+import com.speed.irc.types.MaskList;
+import com.speed.irc.types.ModeList;
 import com.speed.irc.types.RawMessage;
 
 import java.util.Arrays;
@@ -31,6 +34,7 @@ import java.util.Arrays;
  *
  * @author Shivam Mistry
  */
+@GeneratorProperties(commands = "MODE")
 public class ModeGenerator implements EventGenerator {
 
     public boolean accept(RawMessage raw) {
@@ -38,9 +42,7 @@ public class ModeGenerator implements EventGenerator {
     }
 
     public IRCEvent generate(RawMessage message) {
-        String raw = message.getRaw();
         Server server = message.getServer();
-        String sender = message.getSender();
         String name = message.getTarget();
         Channel channel = null;
         if (Arrays.binarySearch(server.getChannelPrefix(), name.charAt(0)) >= 0) {
@@ -50,24 +52,24 @@ public class ModeGenerator implements EventGenerator {
             }
         }
         if (name.equals(server.getNick())) {
-            String modes = raw.split(" :", 2)[1].trim();
-            server.parseUserModes(modes);
+            server.parseUserModes(message.getParam(1));
             return null;
         }
-        String senderNick = sender.split("!")[0].trim();
-        raw = raw.split(name, 2)[1].trim();
-        String[] strings = raw.split(" ");
-        String modes = strings[0];
-        if (strings.length == 1 && channel != null) {
+        String senderNick = message.getPrefixNick();
+        String modes = message.getParam(1);
+        if (message.getParamCount() == 2 && channel != null) {
             channel.chanModeList.parse(modes);
             return new ModeChangedEvent(channel, senderNick, this, modes);
         } else {
-            String[] u = new String[strings.length - 1];
-            System.arraycopy(strings, 1, u, 0, u.length);
+            String[] u = new String[message.getParamCount() - 2];
+            for (int i = 0; i < u.length; i++) {
+                u[i] = message.getParam(i + 2);
+            }
+            final ModeList list = channel.getModeList();
             boolean plus = false;
             int index = 0;
-            for (int i = 0; i < modes.toCharArray().length; i++) {
-                char c = modes.toCharArray()[i];
+            for (int i = 0; i < modes.length(); i++) {
+                char c = modes.charAt(i);
                 if (c == '+') {
                     plus = true;
                     continue;
@@ -75,67 +77,47 @@ public class ModeGenerator implements EventGenerator {
                     plus = false;
                     continue;
                 }
-                if (c == 'b') {
-                    if (plus) {
-                        channel.bans.add(new Mask(u[index]));
-                    } else {
-                        channel.bans.remove(new Mask(u[index]));
-                    }
-                    server.getEventManager().dispatchEvent(
-                            new ModeChangedEvent(channel, senderNick, this, (plus ? "+" : "-")
-                                    + "b", u[index]));
-                    index++;
-
-                    continue;
-                } else if (c == 'e') {
-                    if (plus) {
-                        channel.exempts.add(new Mask(u[index]));
-                    } else {
-                        channel.exempts.remove(new Mask(u[index]));
+                // only modes with a parameter use up an argument
+                final String arg = server.hasModeParameter(c, plus) && index < u.length ? u[index++] : null;
+                if (c == 'b' || c == 'e' || c == 'I') {
+                    if (arg == null) {
+                        continue;
                     }
-                    server.getEventManager().dispatchEvent(
-                            new ModeChangedEvent(channel, senderNick, this, (plus ? "+" : "-")
-                                    + "e", u[index]));
-                    index++;
-
-                    continue;
-                } else if (c == 'I') {
-                    if (plus) {
-                        channel.invites.add(new Mask(u[index]));
-                    } else {
-                        channel.invites.remove(new Mask(u[index]));
+                    final MaskList masks = c == 'b' ? channel.bans : c == 'e' ? channel.exempts : channel.invites;
+                    // extended bans, e.g. $a:account, aren't kept but are still mode changes
+                    if (Mask.verify(arg)) {
+                        final Mask mask = new Mask(arg);
+                        if (plus) {
+                            masks.addIfAbsent(mask);
+                        } else {
+                            masks.remove(mask);
+                        }
                     }
                     server.getEventManager().dispatchEvent(
                             new ModeChangedEvent(channel, senderNick, this, (plus ? "+" : "-")
-                                    + "I", u[index]));
-                    index++;
-
-                    continue;
-                }
-                if (Arrays.binarySearch(server.getModeLetters(), c) >= 0) {
+                                    + c, arg));
+                } else if (server.getPrefixTable().indexOfLetter(c) >= 0) {
                     //this is a known rank, with a nick argument
-                    ChannelUser user = channel.getUser(u[index]);
+                    if (arg == null) {
+                        continue;
+                    }
+                    ChannelUser user = channel.getUser(arg);
                     if (user == null) {
-                        user = new ChannelUser(u[index], "", null, null, channel);
+                        user = new ChannelUser(arg, "", null, null, channel);
                         channel.addChannelUser(user);
                     }
-                    if (user != null) {
-                        if (plus) {
-                            user.addMode(c);
-                        } else {
-                            user.removeMode(c);
-                        }
-                        server.getEventManager().dispatchEvent(
-                                new ModeChangedEvent(channel, user, senderNick, this,
-                                        (plus ? "+" : "-") + c));
-
+                    if (plus) {
+                        user.addMode(c);
+                    } else {
+                        user.removeMode(c);
                     }
+                    server.getEventManager().dispatchEvent(
+                            new ModeChangedEvent(channel, user, senderNick, this,
+                                    (plus ? "+" : "-") + c));
                 } else {
                     //channel modes
-                    channel.getModeList().parse((plus ? "+" : "-") + c);
+                    list.apply(plus, c, arg);
                 }
-                index++;
-
             }
 
         }
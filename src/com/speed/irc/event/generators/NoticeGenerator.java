@@ -2,14 +2,12 @@ package com.speed.irc.event.generators;
 
 import com.speed.irc.connection.Server;
 import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.GeneratorProperties;
 import com.speed.irc.event.IRCEvent;
 import com.speed.irc.event.message.NoticeEvent;
 import com.speed.irc.types.Notice;
 import com.speed.irc.types.RawMessage;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
  * Processes NOTICE messages sent from the server.
  * <p/>
@@ -30,9 +28,8 @@ import java.util.regex.Pattern;
  *
  * @author Shivam Mistry
  */
+@GeneratorProperties(commands = "NOTICE")
 public class NoticeGenerator implements EventGenerator {
-    private static final Pattern PATTERN_NOTICE = Pattern
-            .compile("(.+?)!(.+?)@(.+?) NOTICE (.+?) :(.*)");
     private final Server server;
 
     public NoticeGenerator(Server server) {
@@ -40,19 +37,14 @@ public class NoticeGenerator implements EventGenerator {
     }
 
     public boolean accept(RawMessage raw) {
-        return PATTERN_NOTICE.matcher(raw.getRaw()).matches();
+        return raw.isCommand("NOTICE") && raw.isUserPrefix() && raw.getParamCount() == 2;
     }
 
     public IRCEvent generate(RawMessage raw) {
-        final Matcher notice_matcher = PATTERN_NOTICE.matcher(raw.getRaw());
-        if (notice_matcher.matches()) {
-            final String msg = notice_matcher.group(5);
-            final String sender = notice_matcher.group(1) + '!'
-                    + notice_matcher.group(2) + '@' + notice_matcher.group(3);
-            final String name = notice_matcher.group(4);
-            return new NoticeEvent(new Notice(msg, sender, name, server), this);
-        }
-        return null;
+        final String msg = raw.getTrailing();
+        final String sender = raw.getSender();
+        final String name = raw.getTarget();
+        return new NoticeEvent(new Notice(msg, sender, name, server), this);
     }
 
 }
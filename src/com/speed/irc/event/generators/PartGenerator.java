@@ -1,6 +1,7 @@
 package com.speed.irc.event.generators;
 
 import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.GeneratorProperties;
 import com.speed.irc.event.IRCEvent;
 import com.speed.irc.event.channel.ChannelUserEvent;
 import com.speed.irc.types.Channel;
@@ -27,6 +28,7 @@ import com.speed.irc.types.RawMessage;
  *
  * @author Shivam Mistry
  */
+@GeneratorProperties(commands = "PART")
 public class PartGenerator implements EventGenerator {
 
     public boolean accept(RawMessage raw) {
@@ -34,18 +36,13 @@ public class PartGenerator implements EventGenerator {
     }
 
     public IRCEvent generate(RawMessage raw) {
-        final String nick = raw.getSender().split("!")[0];
-        Channel channel = raw.getServer()
-                .getChannel(raw.getRaw().split(" ")[2]);
+        final String nick = raw.getPrefixNick();
+        Channel channel = raw.getServer().getChannel(raw.getParam(0));
         if (!channel.isRunning()) {
             channel.setup();
         }
         final ChannelUser user = channel.getUser(nick);
-        String[] parts = raw.getRaw().split(" :", 2);
-        String partMsg = "";
-        if (parts.length > 1) {
-            partMsg = parts[1];
-        }
+        final String partMsg = raw.getParamCount() > 1 ? raw.getParam(1) : "";
         return new ChannelUserEvent(this, channel, user,
                 ChannelUserEvent.USER_PARTED, partMsg);
     }
@@ -2,14 +2,11 @@ package com.speed.irc.event.generators;
 
 import com.speed.irc.connection.Server;
 import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.GeneratorProperties;
 import com.speed.irc.event.IRCEvent;
 import com.speed.irc.event.message.PrivateMessageEvent;
 import com.speed.irc.types.*;
 
-import java.util.Arrays;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
  * Processes PRIVMSG messages sent from the server.
  * <p/>
@@ -30,51 +27,53 @@ import java.util.regex.Pattern;
  *
  * @author Shivam Mistry
  */
+@GeneratorProperties(commands = "PRIVMSG")
 public class PrivmsgGenerator implements EventGenerator {
-	private static final Pattern PATTERN_PRIVMSG = Pattern
-			.compile("(.+?)!(.+?)@(.+?) PRIVMSG (.+?) :(.*)");
 
 	public boolean accept(RawMessage raw) {
-		return PATTERN_PRIVMSG.matcher(raw.getRaw()).matches();
+		return raw.isCommand("PRIVMSG") && raw.isUserPrefix() && raw.getParamCount() == 2;
 	}
 
 	public IRCEvent generate(RawMessage raw) {
-		final Matcher priv_matcher = PATTERN_PRIVMSG.matcher(raw.getRaw());
 		final Server server = raw.getServer();
-		if (priv_matcher.matches()) {
-			final String msg = priv_matcher.group(5);
-			final String sender = priv_matcher.group(1);
-			final String user = priv_matcher.group(2);
-			final String host = priv_matcher.group(3);
-			final String name = priv_matcher.group(4);
-			if (msg.startsWith("\u0001")) {// ctcp messages
-				String request = msg.replace("\u0001", "");
-				String reply = server.getCtcpReply(request);
-				if (reply != null) {
-					server.sendRaw(String.format(
-							"NOTICE %s :\u0001%s %s\u0001\n", sender, request,
-							reply));
-				}
+		final String msg = raw.getTrailing();
+		final String sender = raw.getPrefixNick();
+		final String user = raw.getPrefixUser();
+		final String host = raw.getPrefixHost();
+		final String name = raw.getTarget();
+		if (msg.length() > 1 && msg.charAt(0) == '\u0001') {// ctcp messages
+			final int end = msg.charAt(msg.length() - 1) == '\u0001' ? msg.length() - 1 : msg.length();
+			final String request = msg.substring(1, end);
+			final String reply = server.getCtcpRouter().reply(request);
+			if (reply != null) {
+				server.sendRaw(String.format(
+						"NOTICE %s :\u0001%s %s\u0001\n", sender, request,
+						reply));
 			}
-			Conversable conversable = null;
-			if (Arrays.binarySearch(server.getChannelPrefix(), name.charAt(0)) >= 0) {
-				conversable = server.getChannel(name);
-				if (conversable == null) {
-					conversable = new Channel(name, server);
-				}
-				Channel c = (Channel) conversable;
-				if (!c.isRunning()) {
-					c.setup();
+		}
+		// a channel or user that isn't known is only created once a listener
+		// asks for it
+		final Privmsg privmsg;
+		if (server.isChannelName(name)) {
+			final Channel channel = server.findChannel(name);
+			if (channel != null) {
+				if (!channel.isRunning()) {
+					channel.setup();
 				}
+				privmsg = new Privmsg(msg, sender, channel);
 			} else {
-				conversable = new ServerUser(sender, host, user, server);
+				privmsg = new Privmsg(msg, sender, user, host, name, server);
+			}
+		} else {
+			final ServerUser known = server.findUser(sender);
+			if (known != null) {
+				known.update(user, host);
+				privmsg = new Privmsg(msg, sender, known);
+			} else {
+				privmsg = new Privmsg(msg, sender, user, host, sender, server);
 			}
-
-			PrivateMessageEvent event = new PrivateMessageEvent(
-					new Privmsg(msg, sender, conversable), this);
-			return event;
 		}
-		return null;
+		return new PrivateMessageEvent(privmsg, this);
 	}
 
 }
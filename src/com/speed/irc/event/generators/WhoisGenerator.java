@@ -2,6 +2,7 @@ package com.speed.irc.event.generators;
 
 import com.speed.irc.connection.Server;
 import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.GeneratorProperties;
 import com.speed.irc.event.IRCEvent;
 import com.speed.irc.event.api.WhoisEvent;
 import com.speed.irc.types.RawMessage;
@@ -30,6 +31,8 @@ import java.util.Collection;
  *
  * @author Shivam Mistry
  */
+@GeneratorProperties(commands = {Numerics.WHOIS_NAME, Numerics.WHOIS_CHANNELS, Numerics.WHOIS_SERVER,
+        Numerics.WHOIS_OPERATOR, Numerics.WHOIS_IDLE, Numerics.WHOIS_END})
 public class WhoisGenerator implements EventGenerator {
     private final Server server;
 
@@ -46,7 +49,7 @@ public class WhoisGenerator implements EventGenerator {
     }
 
     public IRCEvent generate(RawMessage raw) {
-        String user = raw.getRaw().split(" ")[3];
+        String user = raw.getParam(1);
         Collection<RawMessage> messages = server.whoisWaiting.get(server
                 .getUser(user));
         if (raw.getCommand().equals(Numerics.WHOIS_END)) {
@@ -5,6 +5,8 @@ import com.speed.irc.types.Channel;
 import com.speed.irc.types.ChannelUser;
 
 import javax.swing.*;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Displays a visual list of all the users in the channel, and associated
@@ -32,6 +34,8 @@ public class GraphicalUserList extends JFrame implements Runnable {
     private Channel mainChannel;
     private JList<ChannelUser> list;
     private ListModel<ChannelUser> model;
+    private volatile List<ChannelUser> users = Collections.emptyList();
+    private long version = -1;
 
     public static void main(String[] args) {
         new GraphicalUserList();
@@ -61,12 +65,13 @@ public class GraphicalUserList extends JFrame implements Runnable {
 
             @Override
             public int getSize() {
-                return mainChannel.getUsers().size();
+                return users.size();
             }
 
             @Override
             public ChannelUser getElementAt(int index) {
-                return mainChannel.getSortedUsers()[index];
+                final List<ChannelUser> snapshot = users;
+                return index < snapshot.size() ? snapshot.get(index) : null;
             }
         };
         list = new JList<ChannelUser>(model);
@@ -83,6 +88,10 @@ public class GraphicalUserList extends JFrame implements Runnable {
         while (isVisible() && mainChannel.isJoined()) {
             //okay we should REALLY be using API listeners for this but w.e
             setTitle("User Lister " + mainChannel.getName() + " " + mainChannel.getModeList().parse());
+            if (mainChannel.getUsersVersion() != version) {
+                version = mainChannel.getUsersVersion();
+                users = mainChannel.getSortedUserList();
+            }
             repaint();
             try {
                 Thread.sleep(100);
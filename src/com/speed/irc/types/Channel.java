@@ -1,11 +1,15 @@
 package com.speed.irc.types;
 
 import com.speed.irc.connection.Server;
+import com.speed.irc.event.channel.ChannelEvent;
+import com.speed.irc.event.channel.ChannelSyncEvent;
 import com.speed.irc.event.channel.ChannelUserEvent;
 import com.speed.irc.event.channel.ChannelUserListener;
 import com.speed.irc.event.channel.ModeChangedEvent;
+import com.speed.irc.util.CaseMapping;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -34,8 +38,37 @@ public class Channel extends Conversable implements ChannelUserListener,
         Runnable {
     protected String name;
     protected Server server;
-    public volatile List<ChannelUser> users = new LinkedList<ChannelUser>();
-    public volatile List<ChannelUser> userBuffer = new LinkedList<ChannelUser>();
+    protected final Map<String, ChannelUser> users = new ConcurrentHashMap<String, ChannelUser>();
+    /**
+     * Held while the users of this channel are changed, so that each channel
+     * is changed under its own lock and users can be read without one.
+     * <p/>
+     * The {@link ServerUser} of a user is shared by every channel they are in,
+     * so the channels it is in and its nick are changed while holding the
+     * ServerUser itself. That lock may be taken while holding this one, but
+     * never the other way round.
+     */
+    protected final Object lock = new Object();
+    /**
+     * The users ordered by rank and then nick, kept in order as users join,
+     * leave, and change modes or nicks rather than sorted when asked for.
+     * Users are ordered by the folded nick they are stored under rather than
+     * their nick, which is shared with other channels and may already have
+     * changed by the time this channel moves them.
+     */
+    private final List<ChannelUser> order = new ArrayList<ChannelUser>();
+    private final Comparator<ChannelUser> rankOrder = new Comparator<ChannelUser>() {
+
+        public int compare(ChannelUser o1, ChannelUser o2) {
+            int c = o2.getRights() - o1.getRights();
+            if (c == 0) {
+                return o1.key.compareTo(o2.key);
+            }
+            return c;
+        }
+    };
+    private long version;
+    private volatile Snapshot snapshot;
     public volatile boolean isRunning = false;
     public long whoDelay = 120000L;
     private long topicSetTime;
@@ -43,11 +76,22 @@ public class Channel extends Conversable implements ChannelUserListener,
     public int autoRejoinDelay = 50;
     protected boolean autoRejoin;
     public ModeList chanModeList;
-    public List<Mask> bans = new LinkedList<Mask>();
-    public List<Mask> exempts = new LinkedList<Mask>();
-    public List<Mask> invites = new LinkedList<Mask>();
+    public MaskList bans = new MaskList();
+    public MaskList exempts = new MaskList();
+    public MaskList invites = new MaskList();
     protected String topic;
     protected ScheduledFuture<?> future;
+    private volatile int generation;
+    private boolean syncing;
+    private List<ChannelUser> syncAdded, syncChanged;
+
+    /**
+     * The WHOX request used to refresh the users of a channel, asking only for
+     * the fields that are kept. The token tells the replies apart from those
+     * of WHOX requests made by anything else.
+     */
+    public static final String WHOX_TOKEN = "152";
+    private static final String WHOX_FIELDS = "%tcuhnfa," + WHOX_TOKEN;
 
     public Future<?> getFuture() {
         return future;
@@ -62,7 +106,7 @@ public class Channel extends Conversable implements ChannelUserListener,
     public Channel(final String name, final Server server) {
         this.name = name;
         this.server = server;
-        this.server.getEventManager().addListener(this);
+        this.server.getEventManager().addChannelListener(this, this);
         this.server.addChannel(this);
         chanModeList = new ModeList(server, "");
     }
@@ -81,16 +125,112 @@ public class Channel extends Conversable implements ChannelUserListener,
     }
 
     /**
-     * Gets the list of users in the channel.
+     * Gets the users in the channel. The users are a snapshot that won't
+     * change, and the same snapshot is shared until the users change, so it
+     * is cheap to call this often and from any thread.
      *
-     * @return The list of users in the channel.
+     * @return The users in the channel, in the order of
+     * {@link #getSortedUsers()}.
      */
     public Collection<ChannelUser> getUsers() {
-        return users;
+        return getSortedUserList();
+    }
+
+    /**
+     * Gets the users in the channel, sorted as in {@link #getSortedUsers()}.
+     * The list is a snapshot that won't change, and the same snapshot is
+     * shared until the users change, so the users can be read by position
+     * without copying or sorting them.
+     *
+     * @return the sorted users in the channel
+     * @see #getUsersVersion()
+     */
+    public List<ChannelUser> getSortedUserList() {
+        return snapshot().list;
+    }
+
+    /**
+     * Gets a user by their position in {@link #getSortedUsers()}.
+     *
+     * @param index the position of the user
+     * @return the user, or <tt>null</tt> if there are fewer users
+     */
+    public ChannelUser getSortedUser(final int index) {
+        final ChannelUser[] sorted = snapshot().users;
+        return index >= 0 && index < sorted.length ? sorted[index] : null;
     }
 
+    /**
+     * Gets the version of the users in the channel, which goes up whenever a
+     * user joins or leaves, or changes their modes or nick. A list of users
+     * only needs to be read again once the version has changed.
+     *
+     * @return the version of the users
+     */
+    public long getUsersVersion() {
+        return snapshot().version;
+    }
+
+    private Snapshot snapshot() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (lock) {
+                current = snapshot;
+                if (current == null) {
+                    current = new Snapshot(order.toArray(new ChannelUser[order.size()]), version);
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Puts a user in order, should only be called while holding the lock.
+     *
+     * @param user the user to put in order
+     */
+    void order(final ChannelUser user) {
+        final int index = Collections.binarySearch(order, user, rankOrder);
+        order.add(index < 0 ? -index - 1 : index, user);
+        changed();
+    }
+
+    /**
+     * Takes a user out of order before their rank or key changes, should
+     * only be called while holding the lock.
+     *
+     * @param user the user
+     * @return <tt>true</tt> if the user was in order
+     */
+    boolean unorder(final ChannelUser user) {
+        final int index = Collections.binarySearch(order, user, rankOrder);
+        if (index < 0 || order.get(index) != user) {
+            return false;
+        }
+        order.remove(index);
+        changed();
+        return true;
+    }
 
-	/**
+    /**
+     * Checks whether a user is the one in this channel with their nick.
+     *
+     * @param user the user
+     * @return <tt>true</tt> if the user is in the channel
+     */
+    boolean isMember(final ChannelUser user) {
+        final String key = user.key;
+        return key != null && users.get(key) == user;
+    }
+
+    private void changed() {
+        version++;
+        snapshot = null;
+    }
+
+
+    /**
      * Gets a user from the channel.
      *
      * @param nick The nick of the ChannelUser to get.
@@ -98,32 +238,259 @@ public class Channel extends Conversable implements ChannelUserListener,
      * <code>null</code>.
      */
     public ChannelUser getUser(final String nick) {
-        for (ChannelUser user : users) {
-            if (user.getNick().equalsIgnoreCase(nick)) {
-                return user;
-            }
-        }
-        return null;
+        return nick == null ? null : users.get(server.fold(nick));
     }
 
     /**
-     * Adds a channel user to this channel.
+     * Adds a channel user to this channel, replacing any user with the same
+     * nick. The user is added to the users known by the server.
      *
      * @param user the user to add
      * @return <tt>true</tt> if it is added, <tt>false</tt> otherwise.
      */
     public boolean addChannelUser(final ChannelUser user) {
-        return users.add(user);
+        synchronized (lock) {
+            user.generation = generation;
+            register(user);
+            final String key = server.fold(user.getNick());
+            if (isMember(user)) {
+                if (key.equals(user.key)) {
+                    return false;
+                }
+                users.remove(user.key);
+                unorder(user);
+            }
+            user.key = key;
+            final ChannelUser old = users.put(key, user);
+            if (old != null) {
+                unorder(old);
+            }
+            order(user);
+            return true;
+        }
     }
 
     /**
-     * Removes a user from the channel.
+     * Removes a user from the channel. Once the user shares no channels with
+     * us, they are removed from the users known by the server.
      *
      * @param user the user to remove.
      * @return <tt>true</tt> if they were removed, <tt>false</tt> otherwise.
      */
     public boolean removeChannelUser(final ChannelUser user) {
-        return users.remove(user);
+        synchronized (lock) {
+            final ChannelUser removed = users.remove(isMember(user) ? user.key : server.fold(user.getNick()));
+            if (removed != null) {
+                release(removed);
+                unorder(removed);
+            }
+            return removed != null;
+        }
+    }
+
+    /**
+     * Updates a user from a NAMES or WHO reply, should only really be used
+     * internally. The user is changed in place if they are already known, or
+     * added otherwise, and once {@link #endSync()} is called any users that
+     * weren't in the reply are removed.
+     * <p/>
+     * Replies are read one at a time, as the server doesn't mix the lines of
+     * two replies to the same channel.
+     *
+     * @param nick       the nick of the user
+     * @param prefixes   the bitmask of the access modes of the user
+     * @param user       the username of the user, can be <tt>null</tt> or
+     *                   empty if it isn't known
+     * @param host       the host of the user, can be <tt>null</tt> or empty if
+     *                   it isn't known
+     * @param away       whether the user is away, or <tt>null</tt> if it
+     *                   isn't known
+     * @param oper       whether the user is a server operator, or
+     *                   <tt>null</tt> if it isn't known
+     * @param identified whether the user is identified, or <tt>null</tt> if
+     *                   it isn't known
+     * @return the user in the channel
+     */
+    public ChannelUser syncUser(final String nick, final int prefixes, final String user, final String host,
+                                final Boolean away, final Boolean oper, final Boolean identified) {
+        synchronized (lock) {
+            if (!syncing) {
+                syncing = true;
+                syncAdded = new ArrayList<ChannelUser>();
+                syncChanged = new ArrayList<ChannelUser>();
+                generation++;
+            }
+            ChannelUser existing = getUser(nick);
+            if (existing == null) {
+                existing = new ChannelUser(nick, prefixes, user, host, this);
+                addChannelUser(existing);
+                sync(existing, away, oper, identified);
+                syncAdded.add(existing);
+                return existing;
+            }
+            boolean changed = false;
+            if (existing.getPrefixes() != prefixes) {
+                existing.setPrefixes(prefixes);
+                changed = true;
+            }
+            if ((user != null && !user.isEmpty() && !user.equals(existing.getUser()))
+                    || (host != null && !host.isEmpty() && !host.equals(existing.getHost()))) {
+                existing.update(user, host);
+                changed = true;
+            }
+            changed |= sync(existing, away, oper, identified);
+            existing.generation = generation;
+            if (changed) {
+                syncChanged.add(existing);
+            }
+            return existing;
+        }
+    }
+
+    private static boolean sync(final ChannelUser user, final Boolean away, final Boolean oper,
+                                final Boolean identified) {
+        boolean changed = false;
+        if (away != null && away != user.isAway()) {
+            user.setAway(away);
+            changed = true;
+        }
+        if (oper != null && oper != user.isOper()) {
+            user.setOper(oper);
+            changed = true;
+        }
+        if (identified != null && identified != user.isIdentified()) {
+            user.setIdentified(identified);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Finishes reading a NAMES or WHO reply, should only really be used
+     * internally. Users that weren't in the reply, and haven't joined since
+     * it began, are removed, and a {@link ChannelSyncEvent} is dispatched if
+     * anything changed.
+     */
+    public void endSync() {
+        final List<ChannelUser> removed = new ArrayList<ChannelUser>();
+        final List<ChannelUser> added, changed;
+        synchronized (lock) {
+            if (!syncing) {
+                return;
+            }
+            syncing = false;
+            for (ChannelUser user : users.values()) {
+                if (user.generation != generation && removeChannelUser(user)) {
+                    removed.add(user);
+                }
+            }
+            added = syncAdded;
+            changed = syncChanged;
+            syncAdded = syncChanged = null;
+        }
+        if (!added.isEmpty() || !removed.isEmpty() || !changed.isEmpty()) {
+            server.getEventManager().dispatchEvent(new ChannelSyncEvent(this, this, added, removed, changed));
+        }
+    }
+
+    /**
+     * Stores the users again under their keys, should only really be used
+     * internally once the casemapping of the server has changed.
+     */
+    public void rehashUsers() {
+        synchronized (lock) {
+            final Map<String, ChannelUser> map = new HashMap<String, ChannelUser>(users.size() * 2);
+            for (ChannelUser user : users.values()) {
+                user.key = server.fold(user.getNick());
+                map.put(user.key, user);
+            }
+            users.putAll(map);
+            users.keySet().retainAll(map.keySet());
+            Collections.sort(order, rankOrder);
+            changed();
+        }
+    }
+
+    /**
+     * Moves a user to the key of their new nick, should only really be used
+     * internally once the nick of the user has changed. Does nothing if the
+     * user has already been moved or isn't in this channel.
+     *
+     * @param oldNick the old nick of the user
+     * @param user    the user, with their new nick
+     */
+    public void renameUser(final String oldNick, final ChannelUser user) {
+        synchronized (lock) {
+            final String key = server.fold(user.getNick());
+            if (isMember(user) && !key.equals(user.key)) {
+                users.remove(user.key);
+                unorder(user);
+                user.key = key;
+                users.put(key, user);
+                order(user);
+            }
+        }
+    }
+
+    /**
+     * Removes every user from the channel, once we have left it.
+     */
+    protected void clearUsers() {
+        synchronized (lock) {
+            final Iterator<ChannelUser> it = users.values().iterator();
+            while (it.hasNext()) {
+                final ChannelUser user = it.next();
+                it.remove();
+                release(user);
+            }
+            order.clear();
+            changed();
+        }
+    }
+
+    /**
+     * Adds a user to the users known by the server, sharing the object that
+     * represents them if they are already known, and records that they are in
+     * this channel.
+     * <p/>
+     * Joining and leaving lock the shared user, so a user leaving their last
+     * other channel can't be removed from the known users after they have
+     * been found here but before they are recorded as being in this channel.
+     * If the user was removed before the lock was taken, they are added again.
+     *
+     * @param user the user in this channel
+     */
+    private void register(final ChannelUser user) {
+        final ServerUser candidate = user.person;
+        while (true) {
+            final ServerUser person = server.addUser(candidate);
+            synchronized (person) {
+                if (server.findUser(person.getNick()) != person) {
+                    continue;
+                }
+                person.joined(this);
+            }
+            if (person != candidate) {
+                person.update(candidate.getUser(), candidate.getHost());
+                user.person = person;
+            }
+            return;
+        }
+    }
+
+    /**
+     * Records that a user is no longer in this channel, and removes them from
+     * the users known by the server if they share no other channels with us.
+     *
+     * @param user the user that left this channel
+     */
+    private void release(final ChannelUser user) {
+        final ServerUser person = user.person;
+        synchronized (person) {
+            if (person.left(this)) {
+                server.removeUser(person);
+            }
+        }
     }
 
     /**
@@ -163,7 +530,11 @@ public class Channel extends Conversable implements ChannelUserListener,
 
     public void run() {
         if (isRunning) {
-            server.sendRaw("WHO " + name);
+            if (server.getParser().getServerSupport().isWhoxSupported()) {
+                server.sendRaw("WHO " + name + " " + WHOX_FIELDS);
+            } else {
+                server.sendRaw("WHO " + name);
+            }
             future = server.getChanExec().schedule(this, whoDelay,
                     TimeUnit.MILLISECONDS);
         }
@@ -213,24 +584,14 @@ public class Channel extends Conversable implements ChannelUserListener,
      * Returns a sorted array of ChannelUser objects. This array is sorted by
      * first descending channel rank and then by descending alphabetical order
      * (by nick).
+     * <p/>
+     * The users are kept in order as they change, so this only copies them,
+     * see {@link #getSortedUserList()} to read them without copying.
      *
      * @return the sorted array of users
      */
     public ChannelUser[] getSortedUsers() {
-        final Collection<ChannelUser> users = getUsers();
-        ChannelUser[] u = users.toArray(new ChannelUser[users.size()]);
-        Arrays.sort(u, new Comparator<ChannelUser>() {
-
-            public int compare(ChannelUser o1, ChannelUser o2) {
-                int c = o2.getRights() - o1.getRights();
-                if (c == 0) {
-                    return o1.getNick().toLowerCase()
-                            .compareTo(o2.getNick().toLowerCase());
-                }
-                return c;
-            }
-        });
-        return u;
+        return snapshot().users.clone();
     }
 
     /**
@@ -261,7 +622,25 @@ public class Channel extends Conversable implements ChannelUserListener,
      * @param banMask The ban-mask that should be banned.
      */
     public void ban(final String banMask) {
-        server.sendRaw(String.format("MODE %s +b %s\n", name, banMask));
+        setMode("+b", banMask);
+    }
+
+    /**
+     * Attempts to remove the ban on the specified mask.
+     *
+     * @param banMask The ban-mask that should be unbanned.
+     */
+    public void unban(final String banMask) {
+        setMode("-b", banMask);
+    }
+
+    /**
+     * Attempts to remove the ban on the specified mask.
+     *
+     * @param mask The mask that should be unbanned.
+     */
+    public void unban(final Mask mask) {
+        unban(mask.toString());
     }
 
     /**
@@ -275,6 +654,7 @@ public class Channel extends Conversable implements ChannelUserListener,
         if (reason == null) {
             reason = user.getNick();
         }
+        commitModes();
         server.sendRaw(String.format("KICK %s %s :%s\n", name, user.getNick(),
                 reason));
     }
@@ -294,6 +674,7 @@ public class Channel extends Conversable implements ChannelUserListener,
         if (reason == null) {
             reason = user.getNick();
         }
+        commitModes();
         server.sendRaw(String.format("KICK %s %s :%s\n", name, user.getNick(),
                 reason));
 
@@ -334,27 +715,58 @@ public class Channel extends Conversable implements ChannelUserListener,
     @Override
     public boolean equals(final Object o) {
         return o instanceof Channel
-                && ((Channel) o).getName().equalsIgnoreCase(getName());
+                && server.getCaseMapping().equalsIgnoreCase(((Channel) o).getName(), getName());
+    }
+
+    @Override
+    public int hashCode() {
+        // rfc1459 treats the most names as equal, so the hash code doesn't
+        // change with the casemapping of the server
+        return CaseMapping.RFC1459.hash(getName());
+    }
+
+    /**
+     * Checks whether a user is banned from the channel, using the bans and
+     * exempts known to be set on it.
+     *
+     * @param user the user to check
+     * @return <tt>true</tt> if a ban matches the user and no exempt does
+     */
+    public boolean isBanned(final ServerUser user) {
+        return bans.matches(user) && !exempts.matches(user);
     }
 
     public Collection<ChannelUser> getChannelUsers(final Mask mask) {
-        final List<ChannelUser> users = new LinkedList<ChannelUser>();
-        for (ChannelUser user : users) {
+        final List<ChannelUser> matches = new LinkedList<ChannelUser>();
+        for (ChannelUser user : users.values()) {
             if (mask.matches(user)) {
-                users.add(user);
+                matches.add(user);
             }
         }
-        return users;
+        return matches;
+    }
+
+    /**
+     * Checks whether an event is for this channel. Once a channel has been
+     * removed from the server, events for a channel with the same name are
+     * for the object that replaced it, so they are ignored by this one.
+     *
+     * @param e the event
+     * @return <tt>true</tt> if the event is for this channel object
+     */
+    private boolean isFor(final ChannelEvent e) {
+        return e.getChannel() == this;
     }
 
     public void channelUserJoined(ChannelUserEvent e) {
-        if (e.getChannel().equals(this)) {
-            if (getUser(e.getUser().getNick()) == null) {
-                addChannelUser(e.getUser());
-            } else {
-                ChannelUser user = e.getChannel().getUser(e.getUser().getNick());
-                user.user = e.getUser().getUser();
-                user.host = e.getUser().getHost();
+        if (isFor(e)) {
+            synchronized (lock) {
+                final ChannelUser user = getUser(e.getUser().getNick());
+                if (user == null) {
+                    addChannelUser(e.getUser());
+                } else {
+                    user.update(e.getUser().getUser(), e.getUser().getHost());
+                }
             }
             if (e.getUser().getNick().equals(server.getNick()) && !isRunning()) {
                 setup();
@@ -363,13 +775,14 @@ public class Channel extends Conversable implements ChannelUserListener,
     }
 
     public void channelUserParted(ChannelUserEvent e) {
-        if (e.getChannel().equals(this)) {
+        if (isFor(e)) {
             ChannelUser user = e.getUser();
             if (user != null) {
                 removeChannelUser(user);
                 if (user.getNick().equals(server.getNick())) {
                     isRunning = false;
                     future.cancel(true);
+                    clearUsers();
                 }
             }
 
@@ -380,22 +793,23 @@ public class Channel extends Conversable implements ChannelUserListener,
     }
 
     public void channelUserKicked(ChannelUserEvent e) {
-        if (e.getChannel().equals(this)) {
+        if (isFor(e)) {
             ChannelUser user = e.getUser();
             removeChannelUser(user);
             if (user.getNick().equals(server.getNick()) && isAutoRejoinOn()) {
-                try {
-                    Thread.sleep(autoRejoinDelay);
-                } catch (InterruptedException e1) {
-                    e1.printStackTrace();
-                }
                 isRunning = false;
-				server.removeChannel(this);
-				join();
+                clearUsers();
+                // this channel is kept, so it is the one set up on rejoining
+                server.getChanExec().schedule(new Runnable() {
+                    public void run() {
+                        join();
+                    }
+                }, autoRejoinDelay, TimeUnit.MILLISECONDS);
             } else if (user.getNick().equals(server.getNick())) {
                 isRunning = false;
-				server.removeChannel(this);
-			}
+                clearUsers();
+                server.removeChannel(this);
+            }
         }
     }
 
@@ -405,17 +819,24 @@ public class Channel extends Conversable implements ChannelUserListener,
      * <tt>MODE #channel +vv-o nick1 nick2 nick2</tt> <br>
      * One would need to use: <br>
      * <tt>setMode("+vv-o", "nick1", "nick2", "nick2")</tt>
+     * <p/>
+     * Mode changes are combined with other changes made to this channel
+     * shortly afterwards, see {@link #commitModes()} to send them straight
+     * away.
      *
      * @param mode the mode(s) to set.
      * @param args the arguments of the mode, for example nicknames.
      */
     public void setMode(String mode, String... args) {
-        StringBuilder arg = new StringBuilder();
-        for (String s : args) {
-            arg.append(s).append(' ');
-        }
-        server.sendRaw(String.format("MODE %s %s %s", name, mode,
-                arg.toString()));
+        server.getModeBatcher().add(name, mode, args);
+    }
+
+    /**
+     * Sends the mode changes made to this channel straight away, rather than
+     * waiting for more changes to combine them with.
+     */
+    public void commitModes() {
+        server.getModeBatcher().flush(name);
     }
 
     /**
@@ -437,14 +858,8 @@ public class Channel extends Conversable implements ChannelUserListener,
     }
 
     public void channelUserNickChanged(ChannelUserEvent e) {
-        final String newNick = e.getArgs()[1];
-        if (e.getUser() != null) {
-            final ChannelUser user = e.getUser();
-            final ChannelUser replace = new ChannelUser(newNick,
-                    user.getModes(), user.getUser(), user.getHost(),
-                    e.getChannel());
-            e.getChannel().removeChannelUser(user);
-            e.getChannel().addChannelUser(replace);
+        if (isFor(e) && e.getUser() != null) {
+            renameUser(e.getArgs()[0], e.getUser());
         }
     }
 
@@ -481,9 +896,24 @@ public class Channel extends Conversable implements ChannelUserListener,
     }
 
     public void channelUserQuit(ChannelUserEvent e) {
-        if (e.getChannel().equals(this)) {
+        if (isFor(e)) {
             ChannelUser user = e.getUser();
             removeChannelUser(user);
         }
     }
+
+    /**
+     * The users of a channel at one version.
+     */
+    private static final class Snapshot {
+        private final ChannelUser[] users;
+        private final List<ChannelUser> list;
+        private final long version;
+
+        private Snapshot(final ChannelUser[] users, final long version) {
+            this.users = users;
+            this.list = Collections.unmodifiableList(Arrays.asList(users));
+            this.version = version;
+        }
+    }
 }
\ No newline at end of file
@@ -1,7 +1,14 @@
 package com.speed.irc.types;
 
+import com.speed.irc.connection.PrefixTable;
+
+import java.util.Set;
+
 /**
- * Represents a user in a channel.
+ * Represents a user in a channel. The details of the user that don't depend on
+ * the channel, such as their nick and host, are shared with the single
+ * {@link ServerUser} that represents the user on the server, see
+ * {@link #getServerUser()}.
  * <p/>
  * This file is part of Speed's IRC API.
  * <p/>
@@ -21,12 +28,20 @@ package com.speed.irc.types;
  * @author Shivam Mistry
  */
 public class ChannelUser extends ServerUser {
-    private String modes;
-    private ModeList channelModes;
+    private volatile int prefixes;
     private final Channel channel;
     public static final int VOICE_FLAG = 0x1, HALF_OP_FLAG = 0x2,
             OP_FLAG = 0x4, ADMIN_FLAG = 0x8, OWNER_FLAG = 0x10;
-    private int rights;
+    private volatile int rights;
+    ServerUser person;
+    volatile int generation;
+    /**
+     * The folded nick this user is stored under in its channel. The shared
+     * {@link ServerUser} is renamed before each channel moves its users, so
+     * channels use this rather than the nick to find where the user is kept.
+     * Only changed while holding the lock of the channel.
+     */
+    volatile String key;
 
     public Channel getChannel() {
         return channel;
@@ -34,87 +49,195 @@ public class ChannelUser extends ServerUser {
 
     public ChannelUser(final String nick, final String modes,
                        final String user, final String host, final Channel channel) {
+        this(nick, channel.getServer().getPrefixTable().parse(modes), user, host, channel);
+    }
+
+    /**
+     * Creates a channel user with access modes as a bitmask of the modes of
+     * the server's {@link PrefixTable}.
+     *
+     * @param nick     the nick of the user
+     * @param prefixes the bitmask of the access modes of the user
+     * @param user     the username of the user
+     * @param host     the host of the user
+     * @param channel  the channel the user is in
+     */
+    public ChannelUser(final String nick, final int prefixes,
+                       final String user, final String host, final Channel channel) {
         super(nick, host, user, channel.getServer());
         this.channel = channel;
-        this.channelModes = new ModeList(this.channel.server, "");
-        this.modes = (modes);
-        if (!modes.isEmpty())
-            sync(modes);
+        this.person = channel.getServer().resolveUser(nick, user, host);
+        if (prefixes != 0)
+            setPrefixes(prefixes);
     }
 
+    /**
+     * Gets the object representing this user on the server, which is shared
+     * by every channel the user is in.
+     *
+     * @return the server user
+     */
+    @Override
+    public ServerUser getServerUser() {
+        return person;
+    }
+
+    @Override
+    public String getName() {
+        return person.getName();
+    }
+
+    @Override
+    public String getNick() {
+        return person.getNick();
+    }
+
+    @Override
+    public void setNick(final String nick) {
+        person.setNick(nick);
+    }
+
+    @Override
+    public String getUser() {
+        return person.getUser();
+    }
+
+    @Override
+    public String getHost() {
+        return person.getHost();
+    }
+
+    @Override
+    public void update(final String user, final String host) {
+        person.update(user, host);
+    }
+
+    @Override
+    public Set<Channel> getChannels() {
+        return person.getChannels();
+    }
+
+    @Override
+    public boolean isIdentified() {
+        return person.isIdentified();
+    }
+
+    @Override
+    public void setIdentified(final boolean identified) {
+        person.setIdentified(identified);
+    }
+
+    @Override
+    public boolean isAway() {
+        return person.isAway();
+    }
+
+    @Override
+    public void setAway(final boolean away) {
+        person.setAway(away);
+    }
+
+    @Override
+    public boolean isOper() {
+        return person.isOper();
+    }
+
+    @Override
+    public void setOper(final boolean oper) {
+        person.setOper(oper);
+    }
+
+    @Override
+    public String getRealName() {
+        return person.getRealName();
+    }
+
+    @Override
+    public void setRealName(final String realName) {
+        person.setRealName(realName);
+    }
+
+    /**
+     * Sets the access modes of the user in the channel.
+     *
+     * @param modes the prefix symbols of the modes, e.g. <tt>@+</tt>
+     */
     public void sync(String modes) {
-        channelModes.clear();
-        StringBuilder builder = new StringBuilder("+");
-        for (char c : modes.toCharArray()) {
-            builder.append(channelModes.channelModeSymbolToLetter(c));
-        }
-        channelModes.parse(builder.toString());
-        char[] modeSymbols = channel.getServer().getModeSymbols();
-        if (modeSymbols.length == 5) {
-            if (modes.indexOf(modeSymbols[0]) != -1)
-                rights = rights | OWNER_FLAG;
-            if (modes.indexOf(modeSymbols[1]) != -1)
-                rights = rights | ADMIN_FLAG;
-            if (modes.indexOf(modeSymbols[2]) != -1)
-                rights = rights | OP_FLAG;
-            if (modes.indexOf(modeSymbols[3]) != -1)
-                rights = rights | HALF_OP_FLAG;
-            if (modes.indexOf(modeSymbols[4]) != -1)
-                rights = rights | VOICE_FLAG;
-        } else if (modeSymbols.length == 2) {
-            if (modes.indexOf(modeSymbols[0]) != -1)
-                rights = rights | OP_FLAG;
-            if (modes.indexOf(modeSymbols[1]) != -1)
-                rights = rights | VOICE_FLAG;
-        } else if (modeSymbols.length == 3) {
-            if (modes.indexOf(modeSymbols[0]) != -1)
-                rights = rights | OP_FLAG;
-            if (modes.indexOf(modeSymbols[1]) != -1)
-                rights = rights | HALF_OP_FLAG;
-            if (modes.indexOf(modeSymbols[2]) != -1)
-                rights = rights | VOICE_FLAG;
-        } else if (modeSymbols.length == 4) {
-            if (modes.indexOf(modeSymbols[0]) != -1)
-                rights = rights | ADMIN_FLAG;
-            if (modes.indexOf(modeSymbols[1]) != -1)
-                rights = rights | OP_FLAG;
-            if (modes.indexOf(modeSymbols[2]) != -1)
-                rights = rights | HALF_OP_FLAG;
-            if (modes.indexOf(modeSymbols[3]) != -1)
-                rights = rights | VOICE_FLAG;
+        setPrefixes(channel.getServer().getPrefixTable().parse(modes));
+    }
+
+    /**
+     * Sets the access modes of the user in the channel, as a bitmask of the
+     * modes of the server's {@link PrefixTable}.
+     *
+     * @param prefixes the bitmask of the modes
+     */
+    public void setPrefixes(final int prefixes) {
+        synchronized (channel.lock) {
+            final boolean member = channel.isMember(this) && channel.unorder(this);
+            this.prefixes = prefixes;
+            this.rights = channel.getServer().getPrefixTable().getRights(prefixes);
+            if (member) {
+                channel.order(this);
+            }
         }
     }
 
+    /**
+     * Gets the access modes of the user in the channel, as a bitmask of the
+     * modes of the server's {@link PrefixTable}.
+     *
+     * @return the bitmask of the modes
+     */
+    public int getPrefixes() {
+        return prefixes;
+    }
+
     public void addMode(char mode) {
-        mode = channelModes.channelModeLetterToSymbol(mode);
-        if (modes.indexOf(mode) < 0) {
-            modes = modes + mode;
-            sync(modes);
+        final PrefixTable table = channel.getServer().getPrefixTable();
+        final int index = table.indexOfLetter(mode);
+        if (index >= 0) {
+            synchronized (channel.lock) {
+                final boolean member = channel.isMember(this) && channel.unorder(this);
+                prefixes |= 1 << index;
+                rights |= table.getRights(1 << index);
+                if (member) {
+                    channel.order(this);
+                }
+            }
         }
     }
 
+    /**
+     * Gets the prefix symbols of the access modes the user has in the
+     * channel, highest first.
+     *
+     * @return the prefixes of the user, e.g. <tt>@+</tt>
+     */
     public String getModes() {
-        return modes;
+        return channel.getServer().getPrefixTable().toString(prefixes);
     }
 
     public void removeExempts() {
-        for (final Mask mask : channel.exempts) {
-            if (mask.matches(this)) {
-                channel.removeExempt(mask);
-            }
+        for (final Mask mask : channel.exempts.getMatches(this)) {
+            channel.removeExempt(mask);
         }
     }
 
     public void removeMode(char mode) {
-        mode = channelModes.channelModeLetterToSymbol(mode);
-        StringBuilder builder = new StringBuilder();
-        for (char c : modes.toCharArray()) {
-            if (c != mode) {
-                builder.append(c);
+        final PrefixTable table = channel.getServer().getPrefixTable();
+        final int index = table.indexOfLetter(mode);
+        synchronized (channel.lock) {
+            if (index >= 0 && (prefixes & (1 << index)) != 0) {
+                final boolean member = channel.isMember(this) && channel.unorder(this);
+                prefixes &= ~(1 << index);
+                // another mode may give the same rights, e.g. two kinds of op
+                rights = table.getRights(prefixes);
+                if (member) {
+                    channel.order(this);
+                }
             }
         }
-        modes = builder.toString();
-        sync(modes);
     }
 
     public boolean isOperator() {
@@ -148,6 +271,6 @@ public class ChannelUser extends ServerUser {
 
     @Override
     public String toString() {
-        return modes + getNick();
+        return getModes() + getNick();
     }
 }
@@ -1,10 +1,16 @@
 package com.speed.irc.types;
 
-import com.speed.irc.util.ControlCodeFormatter;
+import com.speed.irc.util.CaseMapping;
+
+import java.util.regex.Pattern;
 
 /**
  * Class used to encapsulate user masks
  * <p/>
+ * The mask is split into its nick, username and host parts once, and users
+ * are matched against them with a wildcard matcher, where <tt>*</tt> matches
+ * any number of characters and <tt>?</tt> matches one, that doesn't create
+ * any objects.
  * <p/>
  * This file is part of Speed's IRC API.
  * <p/>
@@ -25,7 +31,11 @@ import com.speed.irc.util.ControlCodeFormatter;
  */
 public class Mask {
 
+	// each part may hold wildcards and, in the host, cloaks such as user/foo
+	private static final Pattern FORMAT = Pattern.compile("[^\\s!@]+![^\\s!@]+@[^\\s!@]+");
+
 	private final String mask;
+	private final String nick, user, host;
 
 	/**
 	 * Initialise the user mask
@@ -36,25 +46,53 @@ public class Mask {
 		this.mask = mask.toLowerCase();
 		if (!verify(mask))
 			throw new IllegalArgumentException("Mask doesn't match format \"*!*@*\": " + mask);
+		final int bang = this.mask.indexOf('!');
+		final int at = this.mask.indexOf('@', bang);
+		nick = this.mask.substring(0, bang);
+		user = this.mask.substring(bang + 1, at);
+		host = this.mask.substring(at + 1);
 	}
 
 	public Mask(final String nick, final String user, final String host) {
-		this.mask = (nick + '!' + user + '@' + host).toLowerCase();
-		if (!verify(mask))
-			throw new IllegalArgumentException("Arguments are not valid: "
-					+ mask);
+		this(nick + '!' + user + '@' + host);
 	}
 
 	/**
-	 * Verifies if the mask is valid
+	 * Verifies if the mask is valid, i.e. it has a nick, username and host
+	 * part in the form <tt>nick!user@host</tt>.
 	 *
 	 * @param mask the mask to check
 	 * @return <tt>true</tt> if the mask is valid, <tt>false</tt> if it isn't.
 	 */
 	public static boolean verify(final String mask) {
-		return mask
-				.matches("[_a-zA-Z*][-\\[\\]^`*\\w|]*?!~?[-\\[\\]^`*\\w|]+?@[-\\[\\]^`*\\w.:"
-						+ ControlCodeFormatter.UNICODE_COLOUR + "]+");
+		return FORMAT.matcher(mask).matches();
+	}
+
+	/**
+	 * Gets the nick part of the mask.
+	 *
+	 * @return the nick part, e.g. <tt>*</tt>
+	 */
+	public String getNickMask() {
+		return nick;
+	}
+
+	/**
+	 * Gets the username part of the mask.
+	 *
+	 * @return the username part, e.g. <tt>~*</tt>
+	 */
+	public String getUserMask() {
+		return user;
+	}
+
+	/**
+	 * Gets the host part of the mask.
+	 *
+	 * @return the host part, e.g. <tt>*.example.com</tt>
+	 */
+	public String getHostMask() {
+		return host;
 	}
 
 	/**
@@ -64,21 +102,74 @@ public class Mask {
 	 * @return <tt>true</tt> if they do match, <tt>false</tt> if they don't
 	 */
 	public boolean matches(ServerUser user) {
-		String nickMask = mask.substring(0, mask.indexOf('!')).replace("*",
-				".*");
-		String userMask = mask.substring(mask.indexOf('!') + 1,
-				mask.indexOf('@')).replace("*", ".*");
-		String hostMask = mask.substring(mask.indexOf('@') + 1)
-				.replace(".", "\\.").replace("*", ".*");
-		return user.getNick().toLowerCase().matches(nickMask)
-				&& user.getUser().toLowerCase().matches(userMask)
-				&& user.getHost().toLowerCase().matches(hostMask);
+		final CaseMapping mapping = user.getServer() == null ? CaseMapping.RFC1459 : user.getServer()
+				.getCaseMapping();
+		return matches(user.getNick(), user.getUser(), user.getHost(), mapping);
+	}
+
+	/**
+	 * Checks if a user matches this mask.
+	 *
+	 * @param nick    the nick of the user
+	 * @param user    the username of the user, can be <tt>null</tt> if not known
+	 * @param host    the host of the user, can be <tt>null</tt> if not known
+	 * @param mapping the casemapping to compare with
+	 * @return <tt>true</tt> if they do match, <tt>false</tt> if they don't
+	 */
+	public boolean matches(final String nick, final String user, final String host, final CaseMapping mapping) {
+		return matches(this.host, host, mapping) && matches(this.nick, nick, mapping)
+				&& matches(this.user, user, mapping);
+	}
+
+	/**
+	 * Matches a string against a wildcard pattern, where <tt>*</tt> matches
+	 * any number of characters and <tt>?</tt> matches exactly one.
+	 *
+	 * @param pattern the pattern
+	 * @param s       the string to match, <tt>null</tt> is matched as an empty
+	 *                string
+	 * @param mapping the casemapping to compare characters with
+	 * @return <tt>true</tt> if the whole string matches the pattern
+	 */
+	public static boolean matches(final String pattern, final String s, final CaseMapping mapping) {
+		final int plen = pattern.length();
+		final int slen = s == null ? 0 : s.length();
+		int p = 0, i = 0;
+		int star = -1, mark = 0;
+		while (i < slen) {
+			if (p < plen) {
+				final char c = pattern.charAt(p);
+				if (c == '*') {
+					star = p++;
+					mark = i;
+					continue;
+				} else if (c == '?' || mapping.toLowerCase(c) == mapping.toLowerCase(s.charAt(i))) {
+					p++;
+					i++;
+					continue;
+				}
+			}
+			if (star < 0) {
+				return false;
+			}
+			// let the last star match one more character and try again
+			p = star + 1;
+			i = ++mark;
+		}
+		while (p < plen && pattern.charAt(p) == '*') {
+			p++;
+		}
+		return p == plen;
 	}
 
 	public boolean equals(Object o) {
 		return o instanceof Mask && ((Mask) o).mask.equals(mask);
 	}
 
+	public int hashCode() {
+		return mask.hashCode();
+	}
+
 	public String toString() {
 		return mask;
 	}
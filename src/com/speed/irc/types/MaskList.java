@@ -0,0 +1,319 @@
+package com.speed.irc.types;
+
+import com.speed.irc.util.CaseMapping;
+
+import java.util.*;
+
+/**
+ * A list of masks set on a channel, such as its bans, exempts or invites,
+ * indexed so that the masks matching a user can be found without trying
+ * every mask.
+ * <p/>
+ * Masks with a host without wildcards, such as <tt>*!*@host.example.com</tt>,
+ * are indexed by their host, and masks with a host that is a wildcard followed
+ * by a domain, such as <tt>*!*@*.example.com</tt>, are indexed by the domain.
+ * Only the other masks, e.g. <tt>nick!*@*</tt>, need to be tried against
+ * every user.
+ * <p/>
+ * Masks are kept in the order they were added. Like any list, a mask may be
+ * added more than once; {@link #addIfAbsent(Mask)} only adds masks not in the
+ * list already.
+ * <p/>
+ * Lists are safe to use from more than one thread. Iterating over a list goes
+ * over a copy of its masks, so the list may be changed meanwhile.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class MaskList extends AbstractList<Mask> {
+    /**
+     * Hosts are folded with rfc1459, which treats the most hosts as equal, so
+     * the index finds every mask that could match whatever the casemapping of
+     * the server.
+     */
+    private static final CaseMapping HOST_MAPPING = CaseMapping.RFC1459;
+
+    private final List<Mask> masks = new ArrayList<Mask>();
+    private final Map<Mask, Integer> counts = new HashMap<Mask, Integer>();
+    private final Map<String, List<Mask>> hosts = new HashMap<String, List<Mask>>();
+    private final Map<String, List<Mask>> domains = new HashMap<String, List<Mask>>();
+    private final List<Mask> others = new ArrayList<Mask>();
+
+    @Override
+    public synchronized Mask get(final int index) {
+        return masks.get(index);
+    }
+
+    @Override
+    public synchronized int size() {
+        return masks.size();
+    }
+
+    @Override
+    public synchronized boolean add(final Mask mask) {
+        add(masks.size(), mask);
+        return true;
+    }
+
+    @Override
+    public synchronized void add(final int index, final Mask mask) {
+        if (mask == null) {
+            throw new NullPointerException();
+        }
+        masks.add(index, mask);
+        modCount++;
+        addToIndex(mask);
+    }
+
+    /**
+     * Adds a mask to the end of this list, unless it is in the list already.
+     *
+     * @param mask the mask to add
+     * @return <tt>true</tt> if the mask was added
+     */
+    public synchronized boolean addIfAbsent(final Mask mask) {
+        if (counts.containsKey(mask)) {
+            return false;
+        }
+        return add(mask);
+    }
+
+    @Override
+    public synchronized Mask set(final int index, final Mask mask) {
+        if (mask == null) {
+            throw new NullPointerException();
+        }
+        final Mask old = masks.set(index, mask);
+        removeFromIndex(old);
+        addToIndex(mask);
+        return old;
+    }
+
+    @Override
+    public synchronized Mask remove(final int index) {
+        final Mask mask = masks.remove(index);
+        modCount++;
+        removeFromIndex(mask);
+        return mask;
+    }
+
+    @Override
+    public synchronized boolean remove(final Object o) {
+        if (!counts.containsKey(o)) {
+            return false;
+        }
+        remove(masks.indexOf(o));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean contains(final Object o) {
+        return counts.containsKey(o);
+    }
+
+    @Override
+    public synchronized int indexOf(final Object o) {
+        return counts.containsKey(o) ? masks.indexOf(o) : -1;
+    }
+
+    @Override
+    public synchronized void clear() {
+        masks.clear();
+        modCount++;
+        counts.clear();
+        hosts.clear();
+        domains.clear();
+        others.clear();
+    }
+
+    @Override
+    public Iterator<Mask> iterator() {
+        final Iterator<Mask> it;
+        synchronized (this) {
+            it = new ArrayList<Mask>(masks).iterator();
+        }
+        return new Iterator<Mask>() {
+            private Mask last;
+
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public Mask next() {
+                return last = it.next();
+            }
+
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                MaskList.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    private void addToIndex(final Mask mask) {
+        final Integer count = counts.get(mask);
+        counts.put(mask, count == null ? 1 : count + 1);
+        final String host = mask.getHostMask();
+        if (isDomain(host)) {
+            index(domains, HOST_MAPPING.fold(host.substring(1)), mask);
+        } else if (host.indexOf('*') < 0 && host.indexOf('?') < 0) {
+            index(hosts, HOST_MAPPING.fold(host), mask);
+        } else {
+            others.add(mask);
+        }
+    }
+
+    private void removeFromIndex(final Mask mask) {
+        final Integer count = counts.get(mask);
+        if (count == 1) {
+            counts.remove(mask);
+        } else {
+            counts.put(mask, count - 1);
+        }
+        final String host = mask.getHostMask();
+        if (isDomain(host)) {
+            unindex(domains, HOST_MAPPING.fold(host.substring(1)), mask);
+        } else if (host.indexOf('*') < 0 && host.indexOf('?') < 0) {
+            unindex(hosts, HOST_MAPPING.fold(host), mask);
+        } else {
+            others.remove(mask);
+        }
+    }
+
+    /**
+     * Gets the masks in this list that match a user.
+     *
+     * @param user the user
+     * @return the masks matching the user, in no particular order
+     */
+    public List<Mask> getMatches(final ServerUser user) {
+        final List<Mask> matches = new ArrayList<Mask>();
+        find(user, matches);
+        return matches;
+    }
+
+    /**
+     * Checks whether any mask in this list matches a user, e.g. whether a user
+     * is banned.
+     *
+     * @param user the user
+     * @return <tt>true</tt> if a mask matches the user
+     */
+    public boolean matches(final ServerUser user) {
+        return find(user, null);
+    }
+
+    /**
+     * Gets the users that match any mask in this list, e.g. the banned users
+     * in a channel.
+     *
+     * @param users the users to check
+     * @param <T>   the type of the users
+     * @return the users matching a mask
+     */
+    public synchronized <T extends ServerUser> List<T> getMatchingUsers(final Collection<T> users) {
+        final List<T> matches = new ArrayList<T>();
+        for (T user : users) {
+            if (find(user, null)) {
+                matches.add(user);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Finds the masks matching a user.
+     *
+     * @param user    the user
+     * @param matches the list to add the matching masks to, or <tt>null</tt>
+     *                to stop at the first match
+     * @return <tt>true</tt> if a mask matches the user
+     */
+    private synchronized boolean find(final ServerUser user, final List<Mask> matches) {
+        final CaseMapping mapping = user.getServer() == null ? CaseMapping.RFC1459 : user.getServer()
+                .getCaseMapping();
+        final String nick = user.getNick();
+        final String username = user.getUser();
+        final String host = user.getHost();
+        boolean found = false;
+        if (host != null) {
+            final String key = HOST_MAPPING.fold(host);
+            found = find(hosts.get(key), nick, username, host, mapping, matches);
+            if (found && matches == null) {
+                return true;
+            }
+            if (!domains.isEmpty()) {
+                for (int i = key.indexOf('.'); i >= 0; i = key.indexOf('.', i + 1)) {
+                    found |= find(domains.get(key.substring(i)), nick, username, host, mapping, matches);
+                    if (found && matches == null) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return find(others, nick, username, host, mapping, matches) || found;
+    }
+
+    private static boolean find(final List<Mask> list, final String nick, final String user, final String host,
+                                final CaseMapping mapping, final List<Mask> matches) {
+        if (list == null) {
+            return false;
+        }
+        boolean found = false;
+        for (Mask mask : list) {
+            if (mask.matches(nick, user, host, mapping)) {
+                if (matches == null) {
+                    return true;
+                }
+                matches.add(mask);
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Checks whether the host of a mask is a wildcard followed by a domain,
+     * e.g. <tt>*.example.com</tt>.
+     *
+     * @param host the host of the mask
+     * @return <tt>true</tt> if the mask can be indexed by its domain
+     */
+    private static boolean isDomain(final String host) {
+        return host.length() > 2 && host.charAt(0) == '*' && host.charAt(1) == '.'
+                && host.indexOf('*', 1) < 0 && host.indexOf('?') < 0;
+    }
+
+    private static void index(final Map<String, List<Mask>> map, final String key, final Mask mask) {
+        List<Mask> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<Mask>(1);
+            map.put(key, list);
+        }
+        list.add(mask);
+    }
+
+    private static void unindex(final Map<String, List<Mask>> map, final String key, final Mask mask) {
+        final List<Mask> list = map.get(key);
+        if (list != null && list.remove(mask) && list.isEmpty()) {
+            map.remove(key);
+        }
+    }
+}
@@ -1,13 +1,22 @@
 package com.speed.irc.types;
 
+import com.speed.irc.connection.PrefixTable;
 import com.speed.irc.connection.Server;
 
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A class representing user and channel modes.
  * <p/>
+ * The modes that are set are held in a bitset of two longs, one bit for each
+ * ASCII character, and the parameters of modes such as the key and limit of a
+ * channel in a small array alongside it. Both are kept in an immutable state
+ * which changes are made to a copy of, and the copy is swapped in atomically
+ * without locking. A mode list can be read while it is being changed, and
+ * readers see either all of a change, such as <tt>+kl key 10</tt>, or none of
+ * it.
+ * <p/>
  * This file is part of Speed's IRC API.
  * <p/>
  * Speed's IRC API is free software: you can redistribute it and/or modify it
@@ -26,7 +35,10 @@ import java.util.concurrent.CopyOnWriteArraySet;
  * @author Shivam Mistry
  */
 public class ModeList {
-    private Set<Character> modes = new CopyOnWriteArraySet<Character>();
+    private static final Param[] NO_PARAMS = new Param[0];
+    private static final State EMPTY = new State(0, 0, NO_PARAMS);
+
+    private final AtomicReference<State> state = new AtomicReference<State>(EMPTY);
     private final Server server;
 
     public ModeList(final Server server, final String modes) {
@@ -37,43 +49,128 @@ public class ModeList {
 
 
     protected void clear() {
-        modes.clear();
+        state.set(EMPTY);
     }
 
     public char channelModeLetterToSymbol(char letter) {
-        for (int i = 0; i < server.getModeLetters().length; i++) {
-            if (server.getModeLetters()[i] == letter) {
-                return server.getModeSymbols()[i];
-            }
-        }
-        return '0';
+        final PrefixTable table = server.getPrefixTable();
+        final int index = table.indexOfLetter(letter);
+        return index < 0 ? '0' : table.getSymbol(index);
     }
 
     public char channelModeSymbolToLetter(char symbol) {
-        for (int i = 0; i < server.getModeSymbols().length; i++) {
-            if (server.getModeSymbols()[i] == symbol) {
-                return server.getModeLetters()[i];
+        final PrefixTable table = server.getPrefixTable();
+        final int index = table.indexOfSymbol(symbol);
+        return index < 0 ? '0' : table.getLetter(index);
+    }
+
+    /**
+     * Checks whether a mode is set.
+     *
+     * @param mode the mode letter
+     * @return <tt>true</tt> if the mode is set
+     */
+    public boolean contains(final char mode) {
+        return state.get().contains(mode);
+    }
+
+    /**
+     * Gets the parameter of a mode, e.g. the key of a channel for <tt>k</tt>.
+     *
+     * @param mode the mode letter
+     * @return the parameter, or <tt>null</tt> if the mode isn't set or has no
+     * parameter
+     */
+    public String getParameter(final char mode) {
+        for (Param param : state.get().params) {
+            if (param.mode == mode) {
+                return param.value;
             }
         }
-        return '0';
+        return null;
+    }
+
+    /**
+     * Sets or removes a mode.
+     *
+     * @param plus  <tt>true</tt> to set the mode, <tt>false</tt> to remove it
+     * @param mode  the mode letter
+     * @param param the parameter of the mode, or <tt>null</tt> if it has none
+     */
+    public void apply(final boolean plus, final char mode, final String param) {
+        State old;
+        do {
+            old = state.get();
+        } while (!state.compareAndSet(old, old.apply(plus, mode, param)));
     }
 
     public String parse() {
-        if (modes.size() > 0) {
-            StringBuilder builder = new StringBuilder(modes.size());
-            for (char c : modes) {
-                builder.append(c);
+        final State current = state.get();
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 2; i++) {
+            long word = i == 0 ? current.low : current.high;
+            while (word != 0) {
+                builder.append((char) ((i << 6) + Long.numberOfTrailingZeros(word)));
+                word &= word - 1;
             }
-            return '+' + builder.toString();
-        } else {
-            return "";
         }
+        return builder.length() > 0 ? '+' + builder.toString() : "";
     }
 
     public void parse(String modes) {
+        State old, updated;
+        do {
+            old = state.get();
+            updated = old;
+            boolean plus = false;
+            for (int i = 0; i < modes.length(); i++) {
+                char c = modes.charAt(i);
+                if (c == '+') {
+                    plus = true;
+                    continue;
+                } else if (c == '-') {
+                    plus = false;
+                    continue;
+                }
+                updated = updated.apply(plus, c, null);
+            }
+        } while (!state.compareAndSet(old, updated));
+    }
+
+    /**
+     * Parses channel mode changes with their parameters, e.g.
+     * <tt>parse("+kl-m", "key", "10")</tt>. Parameters are matched to modes
+     * using the PREFIX and CHANMODES settings of the server. List modes, such
+     * as bans, and the access modes of users are not kept in the mode list,
+     * but their parameters are skipped.
+     *
+     * @param modes the mode changes
+     * @param args  the parameters of the modes
+     * @return the number of parameters used
+     */
+    public int parse(final String modes, final String... args) {
+        final int[] used = new int[1];
+        State old;
+        do {
+            old = state.get();
+        } while (!state.compareAndSet(old, parse(old, used, modes, args)));
+        return used[0];
+    }
+
+    /**
+     * Applies channel mode changes to a state.
+     *
+     * @param state the state to start from
+     * @param used  where the number of parameters used is put
+     * @param modes the mode changes
+     * @param args  the parameters of the modes
+     * @return the new state
+     */
+    private State parse(State state, final int[] used, final String modes, final String... args) {
         boolean plus = false;
-        for (int i = 0; i < modes.toCharArray().length; i++) {
-            char c = modes.toCharArray()[i];
+        int arg = 0;
+        for (int i = 0; i < modes.length(); i++) {
+            final char c = modes.charAt(i);
             if (c == '+') {
                 plus = true;
                 continue;
@@ -81,14 +178,113 @@ public class ModeList {
                 plus = false;
                 continue;
             }
-            if (plus) {
+            String param = null;
+            if (server.hasModeParameter(c, plus) && arg < args.length) {
+                param = args[arg++];
+            }
+            if (server.getPrefixTable().indexOfLetter(c) < 0
+                    && server.getParser().getServerSupport().getChanModeType(c) != 0) {
+                state = state.apply(plus, c, param);
+            }
+        }
+        used[0] = arg;
+        return state;
+    }
+
+    /**
+     * Replaces the modes in the list, e.g. with the modes of a channel from
+     * the server. The new modes are worked out before they replace the old
+     * ones, so the list is never seen empty or half filled.
+     *
+     * @param modes the modes that are set
+     * @param args  the parameters of the modes
+     */
+    public void set(final String modes, final String... args) {
+        state.set(parse(EMPTY, new int[1], modes, args));
+    }
 
-                this.modes.add(c);
+    /**
+     * The modes that are set and their parameters, which is never changed
+     * once created.
+     */
+    private static final class State {
+        private final long low, high;
+        private final Param[] params;
+
+        private State(final long low, final long high, final Param[] params) {
+            this.low = low;
+            this.high = high;
+            this.params = params;
+        }
+
+        private boolean contains(final char mode) {
+            return mode < 128 && ((mode < 64 ? low : high) & (1L << (mode & 63))) != 0;
+        }
+
+        /**
+         * Gets a copy of this state with a mode set or removed.
+         *
+         * @param plus  <tt>true</tt> to set the mode, <tt>false</tt> to remove it
+         * @param mode  the mode letter
+         * @param param the parameter of the mode, or <tt>null</tt> if it has none
+         * @return the new state, or this state if nothing changed
+         */
+        private State apply(final boolean plus, final char mode, final String param) {
+            if (mode >= 128) {
+                return this;
+            }
+            final long bit = 1L << (mode & 63);
+            long low = this.low, high = this.high;
+            if (mode < 64) {
+                low = plus ? low | bit : low & ~bit;
             } else {
-                if (this.modes.contains(c))
-                    this.modes.remove(c);
+                high = plus ? high | bit : high & ~bit;
+            }
+            final Param[] params = setParameter(mode, plus ? param : null);
+            if (low == this.low && high == this.high && params == this.params) {
+                return this;
+            }
+            return new State(low, high, params);
+        }
 
+        private Param[] setParameter(final char mode, final String value) {
+            int index = -1;
+            for (int i = 0; i < params.length; i++) {
+                if (params[i].mode == mode) {
+                    index = i;
+                    break;
+                }
+            }
+            final Param[] updated;
+            if (index < 0 && value == null) {
+                return params;
+            } else if (index < 0) {
+                updated = Arrays.copyOf(params, params.length + 1);
+                updated[params.length] = new Param(mode, value);
+            } else if (value == null) {
+                updated = new Param[params.length - 1];
+                System.arraycopy(params, 0, updated, 0, index);
+                System.arraycopy(params, index + 1, updated, index, params.length - index - 1);
+            } else if (value.equals(params[index].value)) {
+                return params;
+            } else {
+                updated = params.clone();
+                updated[index] = new Param(mode, value);
             }
+            return updated;
+        }
+    }
+
+    /**
+     * A mode and its parameter.
+     */
+    private static final class Param {
+        private final char mode;
+        private final String value;
+
+        private Param(final char mode, final String value) {
+            this.mode = mode;
+            this.value = value;
         }
     }
 }
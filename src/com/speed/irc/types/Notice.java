@@ -97,16 +97,25 @@ public class Notice {
 		} else {
 			conversableTarget = Arrays.binarySearch(server.getChannelPrefix(),
 					target.charAt(0)) >= 0 ? server.getChannel(target) : server
-					.getUser(target.toLowerCase());
+					.getUser(target);
 			return conversableTarget;
 		}
 	}
 
+	/**
+	 * Gets the name of the target of the notice, without looking it up.
+	 *
+	 * @return the name of the channel, or the nick of the user
+	 */
+	public String getTargetName() {
+		return target;
+	}
+
 	/**
 	 * Gets the channel the notice was sent to or from
 	 *
 	 * @return the channel the notice was sent to or from
-	 * @deprecated see {@link #getTarget()} instead
+	 * @deprecated see {@link #getTarget()} or {@link #getTargetName()} instead
 	 */
 	public String getChannel() {
 		return target;
@@ -1,6 +1,6 @@
 package com.speed.irc.types;
 
-import java.util.Arrays;
+import com.speed.irc.connection.Server;
 
 /**
  * A wrapper class for PRIVMSGs.
@@ -25,7 +25,9 @@ import java.util.Arrays;
 public class Privmsg {
 
     private final String message, sender;
-    private Conversable conversable;
+    private volatile Conversable conversable;
+    private final String name, user, host;
+    private final Server server;
 
     /**
      * @param message     The actual message.
@@ -37,6 +39,32 @@ public class Privmsg {
         this.message = message;
         this.conversable = conversable;
         this.sender = sender;
+        this.name = conversable.getName();
+        this.server = conversable.getServer();
+        this.user = null;
+        this.host = null;
+    }
+
+    /**
+     * Creates a received message, where the channel or user it was sent
+     * to/from is only looked up, or created, once it is asked for.
+     *
+     * @param message the actual message
+     * @param sender  the nick of the person who sent the message
+     * @param user    the username of the sender
+     * @param host    the host of the sender
+     * @param name    the name of the channel the message was sent to, or the
+     *                nick of the sender if it was sent privately
+     * @param server  the server the message was received on
+     */
+    public Privmsg(final String message, final String sender, final String user, final String host,
+                   final String name, final Server server) {
+        this.message = message;
+        this.sender = sender;
+        this.user = user;
+        this.host = host;
+        this.name = name;
+        this.server = server;
     }
 
     /**
@@ -63,7 +91,34 @@ public class Privmsg {
      * @return the conversable object
      */
     public Conversable getConversable() {
-        return conversable;
+        Conversable c = conversable;
+        if (c == null) {
+            synchronized (this) {
+                c = conversable;
+                if (c == null) {
+                    if (server.isChannelName(name)) {
+                        final Channel channel = server.getChannel(name);
+                        if (!channel.isRunning()) {
+                            channel.setup();
+                        }
+                        c = channel;
+                    } else {
+                        c = server.resolveUser(name, user, host);
+                    }
+                    conversable = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Gets the name of the conversable object, without looking it up.
+     *
+     * @return the name of the channel, or the nick of the user
+     */
+    public String getConversableName() {
+        return name;
     }
 
     /**
@@ -82,7 +137,7 @@ public class Privmsg {
      * <tt>false</tt> otherwise
      */
     public boolean isChannelMessage() {
-        return Arrays.binarySearch(getConversable().getServer().getChannelPrefix(), getConversable().getName().charAt(0)) >= 0;
+        return server.isChannelName(name);
     }
 
     /**
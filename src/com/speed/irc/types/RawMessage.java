@@ -3,7 +3,9 @@ package com.speed.irc.types;
 import com.speed.irc.connection.Server;
 
 /**
- * Represents a raw message.
+ * Represents a raw message. The line is tokenized once, when the message is
+ * created, into offsets of its IRCv3 tags, prefix, command and parameters.
+ * Substrings are only created when a part of the message is asked for.
  * <p/>
  * This file is part of Speed's IRC API.
  * <p/>
@@ -24,62 +26,388 @@ import com.speed.irc.connection.Server;
  */
 public class RawMessage {
 
+    private static final int[] NO_PARAMS = new int[0];
+
+    private final String line;
+    private final Server server;
+    private int tagsStart = -1, tagsEnd;
+    private int prefixStart = -1, prefixEnd, nickEnd, userStart = -1, hostStart = -1;
+    private int commandStart, commandEnd;
+    private int[] params = NO_PARAMS;
+    private int paramCount;
+    private boolean trailing;
     private String raw, code, sender, target;
-    private Server server;
 
     /**
      * Initialises a wrapper for raw messages.
      *
-     * @param raw    the raw message
+     * @param raw    the raw message, as it was read from the server
      * @param server the server the raw message was sent from
      */
-    public RawMessage(String raw, final Server server) {
-        this.raw = raw;
+    public RawMessage(final String raw, final Server server) {
+        this.line = raw;
         this.server = server;
-        String[] strings = raw.split(" ");
-        code = strings[1];
-        sender = strings[0];
-        if (strings.length > 2)
-            target = strings[2];
+        tokenize();
+    }
+
+    private void tokenize() {
+        final int len = line.length();
+        int i = 0;
+        if (i < len && line.charAt(i) == '@') {
+            tagsStart = i + 1;
+            i = skipWord(i);
+            tagsEnd = i;
+            i = skipSpaces(i);
+        }
+        if (i < len && line.charAt(i) == ':') {
+            prefixStart = i + 1;
+            i = skipWord(i);
+            prefixEnd = i;
+            nickEnd = prefixEnd;
+            for (int j = prefixStart; j < prefixEnd; j++) {
+                final char c = line.charAt(j);
+                if (c == '!' && userStart < 0 && hostStart < 0) {
+                    userStart = j + 1;
+                    nickEnd = Math.min(nickEnd, j);
+                } else if (c == '@' && hostStart < 0) {
+                    hostStart = j + 1;
+                    nickEnd = Math.min(nickEnd, j);
+                }
+            }
+            i = skipSpaces(i);
+        }
+        commandStart = i;
+        i = skipWord(i);
+        commandEnd = i;
+        i = skipSpaces(i);
+        while (i < len) {
+            if (paramCount * 2 == params.length) {
+                final int[] grown = new int[Math.max(8, params.length * 2)];
+                System.arraycopy(params, 0, grown, 0, params.length);
+                params = grown;
+            }
+            if (line.charAt(i) == ':') {
+                params[paramCount * 2] = i + 1;
+                params[paramCount * 2 + 1] = len;
+                paramCount++;
+                trailing = true;
+                break;
+            }
+            params[paramCount * 2] = i;
+            i = skipWord(i);
+            params[paramCount * 2 + 1] = i;
+            paramCount++;
+            i = skipSpaces(i);
+        }
+    }
+
+    private int skipWord(int i) {
+        final int len = line.length();
+        while (i < len && line.charAt(i) != ' ') {
+            i++;
+        }
+        return i;
+    }
 
+    private int skipSpaces(int i) {
+        final int len = line.length();
+        while (i < len && line.charAt(i) == ' ') {
+            i++;
+        }
+        return i;
     }
 
     /**
-     * Gets the raw message.
+     * Gets the raw message, without any tags or the leading colon of the
+     * prefix.
      *
      * @return the raw message.
      */
     public String getRaw() {
+        if (raw == null) {
+            raw = line.substring(prefixStart >= 0 ? prefixStart : commandStart);
+        }
         return raw;
     }
 
+    /**
+     * Gets the whole line as it was read from the server.
+     *
+     * @return the line as it was read from the server.
+     */
+    public String getLine() {
+        return line;
+    }
+
     /**
      * Gets the command/code of this raw message.
      *
      * @return the command or code of this raw message.
      */
     public String getCommand() {
+        if (code == null) {
+            code = line.substring(commandStart, commandEnd);
+        }
         return code;
     }
 
+    /**
+     * Checks whether this message is for a command, without creating a
+     * substring of the command.
+     *
+     * @param command the command to check for
+     * @return <tt>true</tt> if this message is for the command (ignoring case),
+     * <tt>false</tt> otherwise
+     */
+    public boolean isCommand(final String command) {
+        return command.length() == commandEnd - commandStart
+                && line.regionMatches(true, commandStart, command, 0, command.length());
+    }
+
+    /**
+     * Gets the numeric code of this raw message.
+     *
+     * @return the numeric code, or <tt>-1</tt> if the command isn't a three
+     * digit numeric
+     */
+    public int getNumeric() {
+        if (commandEnd - commandStart != 3) {
+            return -1;
+        }
+        int numeric = 0;
+        for (int i = commandStart; i < commandEnd; i++) {
+            final char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            numeric = numeric * 10 + (c - '0');
+        }
+        return numeric;
+    }
+
     /**
      * Gets the target of this raw message.
      *
-     * @return the target of the message.
+     * @return the target of the message, i.e. the first parameter, or
+     * <tt>null</tt> if there are no parameters.
      */
     public String getTarget() {
+        if (target == null && paramCount > 0) {
+            target = getParam(0);
+        }
         return target;
     }
 
     /**
      * Gets the sender of the message
      *
-     * @return the sender of the message, in the form <tt>*!*@*</tt>
+     * @return the sender of the message, in the form <tt>*!*@*</tt>, or
+     * <tt>null</tt> if the message had no prefix
      */
     public String getSender() {
+        if (sender == null && prefixStart >= 0) {
+            sender = line.substring(prefixStart, prefixEnd);
+        }
         return sender;
     }
 
+    /**
+     * Gets the prefix of the message.
+     *
+     * @return the prefix of the message, or <tt>null</tt> if it had none
+     * @see #getSender()
+     */
+    public String getPrefix() {
+        return getSender();
+    }
+
+    /**
+     * Gets the nick (or server name) of the prefix.
+     *
+     * @return the nick of the sender, or <tt>null</tt> if the message had no
+     * prefix
+     */
+    public String getPrefixNick() {
+        return prefixStart < 0 ? null : line.substring(prefixStart, nickEnd);
+    }
+
+    /**
+     * Gets the username of the prefix.
+     *
+     * @return the username of the sender, or <tt>null</tt> if the prefix didn't
+     * contain one
+     */
+    public String getPrefixUser() {
+        if (userStart < 0) {
+            return null;
+        }
+        return line.substring(userStart, hostStart > userStart ? hostStart - 1 : prefixEnd);
+    }
+
+    /**
+     * Gets the host of the prefix.
+     *
+     * @return the host of the sender, or <tt>null</tt> if the prefix didn't
+     * contain one
+     */
+    public String getPrefixHost() {
+        return hostStart < 0 ? null : line.substring(hostStart, prefixEnd);
+    }
+
+    /**
+     * Checks whether the prefix is a full user mask, i.e. <tt>nick!user@host</tt>.
+     *
+     * @return <tt>true</tt> if the prefix contains a nick, user and host
+     */
+    public boolean isUserPrefix() {
+        return userStart > prefixStart && hostStart > userStart;
+    }
+
+    /**
+     * Gets the number of parameters of this message, including the trailing
+     * parameter.
+     *
+     * @return the number of parameters
+     */
+    public int getParamCount() {
+        return paramCount;
+    }
+
+    /**
+     * Gets a parameter of this message.
+     *
+     * @param index the index of the parameter, the first parameter after the
+     *              command is <tt>0</tt>
+     * @return the parameter, without the leading colon of a trailing parameter
+     * @throws IndexOutOfBoundsException if there is no such parameter
+     */
+    public String getParam(final int index) {
+        checkParam(index);
+        return line.substring(params[index * 2], params[index * 2 + 1]);
+    }
+
+    /**
+     * Checks whether a parameter equals a string, without creating a
+     * substring of the parameter.
+     *
+     * @param index the index of the parameter
+     * @param s     the string to compare the parameter to
+     * @return <tt>true</tt> if the parameter exists and is equal to the string
+     */
+    public boolean paramEquals(final int index, final String s) {
+        if (index < 0 || index >= paramCount) {
+            return false;
+        }
+        final int start = params[index * 2];
+        return s.length() == params[index * 2 + 1] - start && line.startsWith(s, start);
+    }
+
+    /**
+     * Gets a character of a parameter.
+     *
+     * @param index  the index of the parameter
+     * @param offset the index of the character within the parameter
+     * @return the character, or <tt>0</tt> if the parameter is too short
+     */
+    public char paramCharAt(final int index, final int offset) {
+        checkParam(index);
+        final int i = params[index * 2] + offset;
+        return offset < 0 || i >= params[index * 2 + 1] ? 0 : line.charAt(i);
+    }
+
+    /**
+     * Gets the last parameter of this message, e.g. the text of a PRIVMSG.
+     *
+     * @return the last parameter, or <tt>null</tt> if there are no parameters
+     */
+    public String getTrailing() {
+        return paramCount == 0 ? null : getParam(paramCount - 1);
+    }
+
+    /**
+     * Checks whether the last parameter was sent as a trailing parameter, i.e.
+     * preceded by a colon.
+     *
+     * @return <tt>true</tt> if the last parameter was a trailing parameter
+     */
+    public boolean hasTrailing() {
+        return trailing;
+    }
+
+    private void checkParam(final int index) {
+        if (index < 0 || index >= paramCount) {
+            throw new IndexOutOfBoundsException("Parameter " + index + " of " + paramCount);
+        }
+    }
+
+    /**
+     * Gets the raw IRCv3 tags of this message.
+     *
+     * @return the tags, without the leading <tt>@</tt>, or <tt>null</tt> if the
+     * message had none
+     */
+    public String getTags() {
+        return tagsStart < 0 ? null : line.substring(tagsStart, tagsEnd);
+    }
+
+    /**
+     * Gets the value of an IRCv3 message tag.
+     *
+     * @param key the key of the tag
+     * @return the unescaped value of the tag, an empty string if the tag has
+     * no value, or <tt>null</tt> if the message doesn't have the tag
+     */
+    public String getTag(final String key) {
+        int i = tagsStart;
+        while (i >= 0 && i < tagsEnd) {
+            int end = line.indexOf(';', i);
+            if (end < 0 || end > tagsEnd) {
+                end = tagsEnd;
+            }
+            final int keyEnd = i + key.length();
+            if (keyEnd <= end && line.startsWith(key, i)) {
+                if (keyEnd == end) {
+                    return "";
+                } else if (line.charAt(keyEnd) == '=') {
+                    return unescapeTag(keyEnd + 1, end);
+                }
+            }
+            i = end + 1;
+        }
+        return null;
+    }
+
+    private String unescapeTag(final int start, final int end) {
+        if (line.indexOf('\\', start) < 0 || line.indexOf('\\', start) >= end) {
+            return line.substring(start, end);
+        }
+        final StringBuilder builder = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < end) {
+                c = line.charAt(++i);
+                switch (c) {
+                    case ':':
+                        c = ';';
+                        break;
+                    case 's':
+                        c = ' ';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                }
+            } else if (c == '\\') {
+                continue;
+            }
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
     /**
      * Gets the server the raw message was sent on.
      *
@@ -89,4 +417,9 @@ public class RawMessage {
         return server;
     }
 
+    @Override
+    public String toString() {
+        return line;
+    }
+
 }
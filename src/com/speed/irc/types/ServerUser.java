@@ -1,6 +1,11 @@
 package com.speed.irc.types;
 
 import com.speed.irc.connection.Server;
+import com.speed.irc.util.CaseMapping;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A representation of a user an a server.
@@ -23,10 +28,11 @@ import com.speed.irc.connection.Server;
  * @author Shivam Mistry
  */
 public class ServerUser extends Conversable {
-    protected String nick, host, user;
+    protected volatile String nick, host, user;
     private Server server;
-    private boolean identified, away, oper;
-    private String realName;
+    private volatile boolean identified, away, oper;
+    private volatile String realName;
+    private volatile Set<Channel> channels;
 
     /**
      * Initialises a server user.
@@ -39,10 +45,13 @@ public class ServerUser extends Conversable {
     public ServerUser(final String nick, final String host, final String user,
                       final Server server) {
         this.nick = nick;
-        this.host = host;
-        this.user = user;
         this.server = server;
-        getServer().addUser(this);
+        this.host = intern(host);
+        this.user = intern(user);
+    }
+
+    private String intern(final String s) {
+        return server == null ? s : server.getStringPool().intern(s);
     }
 
     public String toString() {
@@ -61,11 +70,11 @@ public class ServerUser extends Conversable {
     }
 
     public void sendMessage(final String message) {
-        server.sendRaw(String.format("PRIVMSG %s :%s", nick, message));
+        server.sendMessage(new Privmsg(message, null, this));
     }
 
     public void sendNotice(final String notice) {
-        server.sendNotice(new Notice(notice, null, nick, server));
+        server.sendNotice(new Notice(notice, null, getNick(), server));
     }
 
     public String getName() {
@@ -81,6 +90,74 @@ public class ServerUser extends Conversable {
         return nick;
     }
 
+    /**
+     * Changes the nick of this user, should only really be used internally.
+     *
+     * @param nick the new nick of the user
+     * @see Server#renameUser(ServerUser, String)
+     */
+    public void setNick(final String nick) {
+        this.nick = nick;
+    }
+
+    /**
+     * Updates the username and host of this user, should only really be used
+     * internally.
+     *
+     * @param user the username of the user, ignored if <tt>null</tt> or empty
+     * @param host the host of the user, ignored if <tt>null</tt> or empty
+     */
+    public void update(final String user, final String host) {
+        if (user != null && !user.isEmpty() && !user.equals(this.user)) {
+            this.user = intern(user);
+        }
+        if (host != null && !host.isEmpty() && !host.equals(this.host)) {
+            this.host = intern(host);
+        }
+    }
+
+    /**
+     * Gets the channels this user shares with us.
+     *
+     * @return the channels this user is in
+     */
+    public Set<Channel> getChannels() {
+        final Set<Channel> set = channels;
+        return set == null ? Collections.<Channel>emptySet() : Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * Records that this user is in a channel, should only be called while
+     * holding this user.
+     *
+     * @param channel the channel the user is in
+     */
+    protected void joined(final Channel channel) {
+        Set<Channel> set = channels;
+        if (set == null) {
+            // only created when needed, as channel users never use theirs
+            set = Collections.newSetFromMap(new ConcurrentHashMap<Channel, Boolean>());
+            channels = set;
+        }
+        set.add(channel);
+    }
+
+    /**
+     * Records that this user is no longer in a channel, should only be called
+     * while holding this user.
+     *
+     * @param channel the channel the user left
+     * @return <tt>true</tt> if the user no longer shares any channels with us
+     */
+    protected boolean left(final Channel channel) {
+        final Set<Channel> set = channels;
+        if (set == null) {
+            return true;
+        }
+        set.remove(channel);
+        return set.isEmpty();
+    }
+
     /**
      * Gets the host of the user.
      *
@@ -177,14 +254,16 @@ public class ServerUser extends Conversable {
         else {
             ServerUser other = (ServerUser) o;
 
-            return other != null && other.getNick().equalsIgnoreCase(nick);
+            final CaseMapping mapping = server == null ? CaseMapping.RFC1459 : server.getCaseMapping();
+            return other != null && mapping.equalsIgnoreCase(other.getNick(), getNick());
         }
     }
 
     @Override
     public int hashCode() {
-        return (getNick().hashCode() | getHost().hashCode() | getUser()
-                .hashCode()) & 0xfffffff;
+        // rfc1459 treats the most nicks as equal, so the hash code doesn't
+        // change with the casemapping of the server
+        return CaseMapping.RFC1459.hash(getNick());
     }
 
     public void requestWhois() {
@@ -1,5 +1,6 @@
 package com.speed.irc.types;
 
+import com.speed.irc.connection.PrefixTable;
 import com.speed.irc.connection.Server;
 import com.speed.irc.util.Numerics;
 
@@ -28,7 +29,8 @@ import java.util.Collections;
  */
 public class Whois {
     private Collection<RawMessage> whois;
-    private Channel[] channels;
+    private volatile Channel[] channels;
+    private String[] channelNames = new String[0];
     private ServerUser user;
     private Server server;
 
@@ -43,8 +45,32 @@ public class Whois {
         return user;
     }
 
+    /**
+     * Gets the channels the user is in. Channels that aren't known to the
+     * server are only created the first time this is called.
+     *
+     * @return the channels the user is in
+     */
     public Channel[] getChannels() {
-        return channels;
+        Channel[] c = channels;
+        if (c == null) {
+            c = new Channel[channelNames.length];
+            for (int i = 0; i < c.length; i++) {
+                c[i] = server.getChannel(channelNames[i]);
+            }
+            channels = c;
+        }
+        return c;
+    }
+
+    /**
+     * Gets the names of the channels the user is in, without looking the
+     * channels up.
+     *
+     * @return the names of the channels
+     */
+    public String[] getChannelNames() {
+        return channelNames.clone();
     }
 
     public Server getServer() {
@@ -54,36 +80,41 @@ public class Whois {
     private void parse() {
         for (RawMessage m : whois) {
             if (user == null) {
-                user = server.getUser(m.getRaw().split(" ")[3]);
+                user = server.getUser(m.getParam(1));
             }
             if (m.getCommand().equals(Numerics.WHOIS_CHANNELS)) {
-                String[] channels = m.getRaw().split(" :", 2)[1].split(" ");
-                this.channels = new Channel[channels.length];
-                for (int i = 0; i < channels.length; i++) {
-                    String name = channels[i];
-                    String mode = "";
-                    if (name.charAt(0) != '#') {
-                        mode += name.charAt(0);
-                        name = name.substring(1);
+                final PrefixTable table = server.getPrefixTable();
+                final String[] names = m.getTrailing().trim().split(" ");
+                for (int i = 0; i < names.length; i++) {
+                    final String name = names[i];
+                    int start = 0;
+                    // & is both a prefix and a channel type, so a prefix
+                    // must be followed by more than just the channel name
+                    while (start < name.length() - 1 && table.indexOfSymbol(name.charAt(start)) >= 0
+                            && !(server.isChannelName(name.substring(start))
+                            && table.indexOfSymbol(name.charAt(start + 1)) < 0
+                            && !server.isChannelName(name.substring(start + 1)))) {
+                        start++;
                     }
-                    Channel c = new Channel(name, server);
-                    if (c.getUser(user.getNick()) == null) {
-                        c.addChannelUser(new ChannelUser(user.getNick(), mode,
-                                user.getUser(), user.getHost(), c));
-                    } else {
-                        ChannelUser cu = c.getUser(user.getNick());
-                        cu.addMode(mode.charAt(0));
+                    names[i] = name.substring(start);
+                    // only the channels we are in are updated, no channels
+                    // are created for the others
+                    final Channel c = server.findChannel(names[i]);
+                    final ChannelUser cu = c == null ? null : c.getUser(user.getNick());
+                    if (cu != null) {
+                        for (int j = 0; j < start; j++) {
+                            cu.addMode(table.getLetter(table.indexOfSymbol(name.charAt(j))));
+                        }
                     }
-                    this.channels[i] = c;
                 }
+                this.channelNames = names;
+                this.channels = null;
             } else if (m.getCommand().equals(Numerics.WHOIS_NAME)) {
-                String msg = m.getRaw();
-                String[] parts = msg.split(" ");
-                String nick = parts[3];
-                String user = parts[4];
-                String host = parts[5];
-                String realName = msg.split(" :", 2)[1];
-                this.user = new ServerUser(nick, host, user, server);
+                String nick = m.getParam(1);
+                String user = m.getParam(2);
+                String host = m.getParam(3);
+                String realName = m.getTrailing();
+                this.user = server.resolveUser(nick, user, host);
                 this.user.setRealName(realName);
             }
         }
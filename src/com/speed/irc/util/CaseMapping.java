@@ -0,0 +1,164 @@
+package com.speed.irc.util;
+
+/**
+ * The ways a server may compare nicks and channel names, as given in the
+ * CASEMAPPING setting of the server.
+ * <p/>
+ * Names are folded into a key, a lower case form that equal names share.
+ * Folding a name that is already folded returns the same string, and names
+ * can be compared without folding them, so lookups don't have to create new
+ * strings.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public enum CaseMapping {
+    /**
+     * Only the letters <tt>A</tt> to <tt>Z</tt> have lower case forms.
+     */
+    ASCII("ascii", 'Z'),
+    /**
+     * As well as the letters, <tt>[]\~</tt> are the upper case forms of
+     * <tt>{}|^</tt>. This is the default if the server doesn't say.
+     */
+    RFC1459("rfc1459", '^'),
+    /**
+     * As well as the letters, <tt>[]\</tt> are the upper case forms of
+     * <tt>{}|</tt>.
+     */
+    STRICT_RFC1459("strict-rfc1459", ']');
+
+    private final String name;
+    private final char last;
+
+    CaseMapping(final String name, final char last) {
+        this.name = name;
+        this.last = last;
+    }
+
+    /**
+     * Gets the name of this casemapping, as the server sends it.
+     *
+     * @return the name of the casemapping
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the casemapping with a name.
+     *
+     * @param name the name the server sent, can be <tt>null</tt>
+     * @return the casemapping, {@link #RFC1459} if the name is <tt>null</tt>
+     * or isn't known
+     */
+    public static CaseMapping forName(final String name) {
+        for (CaseMapping mapping : values()) {
+            if (mapping.name.equalsIgnoreCase(name)) {
+                return mapping;
+            }
+        }
+        return RFC1459;
+    }
+
+    /**
+     * Gets the lower case form of a character.
+     *
+     * @param c the character
+     * @return the lower case form, or the same character if it has none
+     */
+    public char toLowerCase(final char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= '[' && c <= last) ? (char) (c + 32) : c;
+    }
+
+    /**
+     * Folds a name into the key it is stored by.
+     *
+     * @param s the nick or channel name
+     * @return the folded name, the same string if it is already folded
+     */
+    public String fold(final String s) {
+        final int len = s.length();
+        int i = 0;
+        while (i < len && toLowerCase(s.charAt(i)) == s.charAt(i)) {
+            i++;
+        }
+        if (i == len) {
+            return s;
+        }
+        final char[] chars = s.toCharArray();
+        for (; i < len; i++) {
+            chars[i] = toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Checks whether two names are equal, without folding them.
+     *
+     * @param a the first name
+     * @param b the second name
+     * @return <tt>true</tt> if the names are equal
+     */
+    public boolean equalsIgnoreCase(final String a, final String b) {
+        if (a == b) {
+            return true;
+        } else if (a == null || b == null || a.length() != b.length()) {
+            return false;
+        }
+        for (int i = 0; i < a.length(); i++) {
+            if (toLowerCase(a.charAt(i)) != toLowerCase(b.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares two names, without folding them.
+     *
+     * @param a the first name
+     * @param b the second name
+     * @return a negative number, zero, or a positive number as the first name
+     * comes before, is equal to, or comes after the second
+     */
+    public int compare(final String a, final String b) {
+        final int len = Math.min(a.length(), b.length());
+        for (int i = 0; i < len; i++) {
+            final int c = toLowerCase(a.charAt(i)) - toLowerCase(b.charAt(i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    /**
+     * Gets the hash code of a name, the same as the hash code of the folded
+     * name, without folding it.
+     *
+     * @param s the name
+     * @return the hash code
+     */
+    public int hash(final String s) {
+        int h = 0;
+        for (int i = 0; i < s.length(); i++) {
+            h = 31 * h + toLowerCase(s.charAt(i));
+        }
+        return h;
+    }
+}
@@ -22,7 +22,7 @@ package com.speed.irc.util;
  * @author Shivam Mistry
  */
 public interface Numerics {
-    String WHO_RESPONSE = "352";
+    String WHO_RESPONSE = "352", WHOX_RESPONSE = "354";
     String WHO_END = "315";
     String CHANNEL_NAMES = "353";
     String CHANNEL_TOPIC = "332", CHANNEL_TOPIC_SET = "333";
@@ -0,0 +1,62 @@
+package com.speed.irc.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Shares equal strings, such as the hosts and usernames of users, so that
+ * each is only held in memory once. Strings are only weakly held by the pool,
+ * so strings nothing else uses any more can still be garbage collected.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class StringPool {
+    private final Map<String, WeakReference<String>> strings = new WeakHashMap<String, WeakReference<String>>();
+
+    /**
+     * Gets the string in the pool equal to a string, adding the string to the
+     * pool if there is none.
+     *
+     * @param s the string, can be <tt>null</tt>
+     * @return the string from the pool, or <tt>null</tt> if the string is
+     * <tt>null</tt>
+     */
+    public synchronized String intern(final String s) {
+        if (s == null) {
+            return null;
+        }
+        final WeakReference<String> ref = strings.get(s);
+        final String pooled = ref == null ? null : ref.get();
+        if (pooled != null) {
+            return pooled;
+        }
+        strings.put(s, new WeakReference<String>(s));
+        return s;
+    }
+
+    /**
+     * Gets the number of strings in the pool.
+     *
+     * @return the number of strings, including any that are about to be
+     * garbage collected
+     */
+    public synchronized int size() {
+        return strings.size();
+    }
+}
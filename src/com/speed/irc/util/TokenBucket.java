@@ -0,0 +1,144 @@
+package com.speed.irc.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket, used to limit how quickly something may happen. Tokens are
+ * added to the bucket at a steady rate up to its capacity, and taking tokens
+ * out fails while there aren't enough of them, so bursts are allowed up to
+ * the capacity of the bucket but the average rate is limited.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class TokenBucket {
+    private double rate;
+    private double capacity;
+    private double tokens;
+    private long last = System.nanoTime();
+
+    /**
+     * Creates a full token bucket.
+     *
+     * @param rate     the number of tokens added each second, <tt>0</tt> or
+     *                 less for a bucket that is never empty
+     * @param capacity the most tokens the bucket can hold
+     */
+    public TokenBucket(final double rate, final double capacity) {
+        setRate(rate, capacity);
+    }
+
+    /**
+     * Changes the rate and capacity of this bucket. The bucket is filled to
+     * its new capacity.
+     *
+     * @param rate     the number of tokens added each second, <tt>0</tt> or
+     *                 less for a bucket that is never empty
+     * @param capacity the most tokens the bucket can hold
+     */
+    public synchronized void setRate(final double rate, final double capacity) {
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.last = System.nanoTime();
+    }
+
+    /**
+     * Gets the number of tokens added each second.
+     *
+     * @return the rate of this bucket
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * Gets the most tokens this bucket can hold.
+     *
+     * @return the capacity of this bucket
+     */
+    public synchronized double getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Checks whether this bucket limits anything.
+     *
+     * @return <tt>true</tt> if tokens are added at a limited rate
+     */
+    public synchronized boolean isLimited() {
+        return rate > 0;
+    }
+
+    /**
+     * Takes tokens out of the bucket, if there are enough of them. A cost
+     * greater than the capacity of the bucket only needs a full bucket.
+     *
+     * @param cost the number of tokens to take
+     * @return <tt>true</tt> if the tokens were taken, <tt>false</tt> if there
+     * weren't enough tokens
+     */
+    public synchronized boolean tryAcquire(final double cost) {
+        if (rate <= 0) {
+            return true;
+        }
+        refill();
+        if (tokens < Math.min(cost, capacity)) {
+            return false;
+        }
+        tokens -= cost;
+        return true;
+    }
+
+    /**
+     * Takes tokens out of the bucket whether or not there are enough of them,
+     * leaving the bucket in debt.
+     *
+     * @param cost the number of tokens to take
+     */
+    public synchronized void acquire(final double cost) {
+        if (rate > 0) {
+            refill();
+            tokens -= cost;
+        }
+    }
+
+    /**
+     * Gets how long it will be until tokens could be taken out of the bucket.
+     *
+     * @param cost the number of tokens that would be taken
+     * @param unit the unit of the delay
+     * @return the delay, <tt>0</tt> if the tokens could be taken now
+     */
+    public synchronized long getDelay(final double cost, final TimeUnit unit) {
+        if (rate <= 0) {
+            return 0;
+        }
+        refill();
+        final double missing = Math.min(cost, capacity) - tokens;
+        if (missing <= 0) {
+            return 0;
+        }
+        return unit.convert((long) Math.ceil(missing / rate * 1e9), TimeUnit.NANOSECONDS);
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - last) / 1e9 * rate);
+        last = now;
+    }
+}
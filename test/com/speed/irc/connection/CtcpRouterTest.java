@@ -0,0 +1,156 @@
+package com.speed.irc.connection;
+
+import com.speed.irc.types.CTCPReply;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the matching, templates and rate limits of CTCP routers.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class CtcpRouterTest {
+
+    private static CTCPReply reply(final String request, final String reply) {
+        return new CTCPReply() {
+            public String getReply() {
+                return reply;
+            }
+
+            public String getRequest() {
+                return request;
+            }
+        };
+    }
+
+    @Test
+    public void testCommands() {
+        final CtcpRouter router = new CtcpRouter();
+        router.add(reply("VERSION", "Speed's IRC API"));
+        router.add(reply("PING (.*)", "PING $1"));
+        assertEquals("Speed's IRC API", router.getReply("VERSION"));
+        assertEquals("Speed's IRC API", router.getReply("version"));
+        assertEquals("PING 12345", router.getReply("ping 12345"));
+        assertNull(router.getReply("PING"));
+        assertNull(router.getReply("TIME"));
+        assertNull(router.getReply("VERSIONS"));
+    }
+
+    @Test
+    public void testWildcards() {
+        final CtcpRouter router = new CtcpRouter();
+        router.add(reply("FINGER|USERINFO", "nobody"));
+        router.add(reply("[A-Z]+ (.*)", "echo $1"));
+        assertEquals("nobody", router.getReply("finger"));
+        assertEquals("nobody", router.getReply("USERINFO"));
+        assertEquals("echo hi there", router.getReply("ANY hi there"));
+        assertNull(router.getReply("ANY"));
+    }
+
+    @Test
+    public void testOrder() {
+        final CtcpRouter router = new CtcpRouter();
+        router.add(reply("PING (.*)", "first $1"));
+        router.add(reply("PING (\\d+)", "second $1"));
+        assertEquals("first 1", router.getReply("PING 1"));
+        // replies for the command are tried before the others
+        final CtcpRouter wildcard = new CtcpRouter();
+        wildcard.add(reply("(.*)", "any"));
+        wildcard.add(reply("PING", "pong"));
+        assertEquals("pong", wildcard.getReply("PING"));
+        assertEquals("any", wildcard.getReply("TIME"));
+    }
+
+    @Test
+    public void testTemplates() {
+        final CtcpRouter router = new CtcpRouter();
+        router.add(reply("SUM (\\d+) (\\d+)", "$2+$1 costs \\$$1"));
+        router.add(reply("OPT (a)?(b)", "[$1][$2][$3]"));
+        router.add(reply("CASH", "\\$5 or $1"));
+        assertEquals("2+1 costs $1", router.getReply("SUM 1 2"));
+        // groups that didn't match or don't exist are left out
+        assertEquals("[][b][]", router.getReply("OPT b"));
+        // without groups the reply is sent as it is
+        assertEquals("\\$5 or $1", router.getReply("CASH"));
+    }
+
+    @Test
+    public void testAddAndRemove() {
+        final CtcpRouter router = new CtcpRouter();
+        final CTCPReply version = reply("VERSION", "one");
+        router.add(version);
+        router.add(reply("VERSION", "one"));
+        router.add(reply("VERSION", "two"));
+        assertSame(version, router.get("VERSION"));
+        assertTrue(router.remove(reply("VERSION", "one")));
+        assertEquals("two", router.getReply("VERSION"));
+        assertFalse(router.remove(version));
+        assertNull(router.get("TIME"));
+    }
+
+    @Test
+    public void testReplyRate() {
+        final CtcpRouter router = new CtcpRouter();
+        router.setTotalRate(0, 0);
+        router.setRate("version", 0.001, 2);
+        router.add(reply("VERSION", "v"));
+        router.add(reply("TIME", "t"));
+        assertEquals("v", router.reply("VERSION"));
+        assertEquals("v", router.reply("VERSION"));
+        assertNull(router.reply("VERSION"));
+        // other replies have their own limit
+        assertEquals("t", router.reply("TIME"));
+        assertEquals(1, router.getLimitedCount());
+        // requests without a reply aren't limited or counted
+        assertNull(router.reply("FINGER"));
+        assertEquals(1, router.getLimitedCount());
+        assertEquals("v", router.getReply("VERSION"));
+    }
+
+    @Test
+    public void testTotalRate() {
+        final CtcpRouter router = new CtcpRouter();
+        router.setDefaultRate(0, 0);
+        router.setTotalRate(0.001, 3);
+        router.add(reply("VERSION", "v"));
+        router.add(reply("TIME", "t"));
+        assertEquals("v", router.reply("VERSION"));
+        assertEquals("t", router.reply("TIME"));
+        assertEquals("v", router.reply("VERSION"));
+        assertNull(router.reply("TIME"));
+        assertEquals(1, router.getLimitedCount());
+    }
+
+    @Test
+    public void testWildcardRate() {
+        final CtcpRouter router = new CtcpRouter();
+        router.setTotalRate(0, 0);
+        router.add(reply("(.*)", "$1"));
+        router.setDefaultRate(0.001, 3);
+        // a different command each time still uses up the reply's limit
+        int replies = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (router.reply("FLOOD" + i) != null) {
+                replies++;
+            }
+        }
+        assertEquals(3, replies);
+        assertEquals(997, router.getLimitedCount());
+    }
+}
@@ -0,0 +1,112 @@
+package com.speed.irc.connection;
+
+import com.speed.irc.types.RawMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests how message batchers combine and split the targets of messages.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class MessageBatcherTest {
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+    private ServerSocket listener;
+    private Server server;
+    private MessageBatcher batcher;
+
+    @Before
+    public void setUp() throws IOException {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        server = new Server("127.0.0.1", listener.getLocalPort()) {
+            @Override
+            public void sendRaw(final String raw) {
+                sent.add(raw);
+            }
+        };
+        server.getParser().generate(new RawMessage(":irc.test 005 bot TARGMAX=PRIVMSG:3 :are supported", server));
+        batcher = server.getMessageBatcher();
+        // only send when the tests flush
+        batcher.setWindow(60000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.quit();
+        listener.close();
+    }
+
+    @Test
+    public void testTargetLimit() {
+        for (String target : new String[]{"#a", "#b", "bob", "#c"}) {
+            batcher.add("PRIVMSG", target, "hi");
+        }
+        // a full batch is sent without waiting
+        assertEquals(Arrays.asList("PRIVMSG #a,#b,bob :hi"), sent);
+        batcher.flush();
+        assertEquals(Arrays.asList("PRIVMSG #a,#b,bob :hi", "PRIVMSG #c :hi"), sent);
+    }
+
+    @Test
+    public void testLineLength() {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 380; i++) {
+            text.append('x');
+        }
+        batcher.add("PRIVMSG", "#chan1", text.toString());
+        batcher.add("PRIVMSG", "#chan2", text.toString());
+        batcher.add("PRIVMSG", "#chan3", text.toString());
+        batcher.flush();
+        assertEquals(Arrays.asList("PRIVMSG #chan1,#chan2 :" + text, "PRIVMSG #chan3 :" + text), sent);
+    }
+
+    @Test
+    public void testOrder() {
+        batcher.add("PRIVMSG", "#a", "one");
+        batcher.add("PRIVMSG", "#b", "two");
+        batcher.add("PRIVMSG", "#a", "two");
+        batcher.add("PRIVMSG", "#b", "one");
+        batcher.flush();
+        // each target gets its messages in the order they were added
+        assertEquals(Arrays.asList("PRIVMSG #a :one", "PRIVMSG #b,#a :two", "PRIVMSG #b :one"), sent);
+    }
+
+    @Test
+    public void testUnbatched() {
+        batcher.add("PRIVMSG", "#a", "held");
+        // NOTICE isn't in TARGMAX, so it may only have one target
+        batcher.add("NOTICE", "#a", "now");
+        assertEquals(Arrays.asList("PRIVMSG #a :held", "NOTICE #a :now"), sent);
+        batcher.add("PRIVMSG", "#b", "held");
+        batcher.setWindow(0);
+        batcher.add("PRIVMSG", "#c", "now");
+        assertEquals(Arrays.asList("PRIVMSG #a :held", "NOTICE #a :now", "PRIVMSG #b :held", "PRIVMSG #c :now"),
+                sent);
+    }
+}
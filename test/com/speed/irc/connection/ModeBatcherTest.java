@@ -0,0 +1,134 @@
+package com.speed.irc.connection;
+
+import com.speed.irc.types.RawMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests how mode batchers combine and split the mode changes for channels.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class ModeBatcherTest {
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+    private ServerSocket listener;
+    private Server server;
+    private ModeBatcher batcher;
+
+    @Before
+    public void setUp() throws IOException {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        server = new Server("127.0.0.1", listener.getLocalPort()) {
+            @Override
+            public void sendRaw(final String raw) {
+                sent.add(raw);
+            }
+        };
+        support("PREFIX=(ov)@+ CHANMODES=beI,k,l,imnpst MODES=3");
+        batcher = server.getModeBatcher();
+        // only send when the tests flush
+        batcher.setWindow(60000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.quit();
+        listener.close();
+    }
+
+    private void support(final String settings) {
+        server.getParser().generate(new RawMessage(":irc.test 005 bot " + settings + " :are supported", server));
+    }
+
+    @Test
+    public void testMaxModes() {
+        batcher.add("#chan", "+oooo", "a", "b", "c", "d");
+        batcher.add("#chan", "+nt");
+        batcher.flush();
+        // modes without a parameter don't count towards MODES
+        assertEquals(Arrays.asList("MODE #chan +ooo a b c", "MODE #chan +ont d"), sent);
+    }
+
+    @Test
+    public void testCombine() {
+        batcher.add("#Chan", "+v", "x");
+        batcher.add("#chan", false, 'o', "y");
+        batcher.add("#CHAN", "+m-l");
+        batcher.add("#other", "+k", "key");
+        assertEquals(4, batcher.getPendingCount("#chan"));
+        assertTrue(sent.isEmpty());
+        batcher.flush("#chan");
+        assertEquals(0, batcher.getPendingCount("#chan"));
+        assertEquals(1, batcher.getPendingCount("#other"));
+        // the channel is named as it was first given
+        assertEquals(Arrays.asList("MODE #Chan +v-o+m-l x y"), sent);
+        batcher.flush();
+        assertEquals(Arrays.asList("MODE #Chan +v-o+m-l x y", "MODE #other +k key"), sent);
+    }
+
+    @Test
+    public void testMissingParameter() {
+        batcher.add("#chan", "+v", "x");
+        // listing the bans is sent straight away, after the changes waiting
+        batcher.add("#chan", "+b");
+        assertEquals(Arrays.asList("MODE #chan +v x", "MODE #chan +b"), sent);
+        assertEquals(0, batcher.getPendingCount("#chan"));
+    }
+
+    @Test
+    public void testLineLength() {
+        support("MODES");
+        final String[] masks = new String[10];
+        for (int i = 0; i < masks.length; i++) {
+            masks[i] = "*!*@host" + i + ".a-rather-long-domain-name-for-testing.example.com";
+            batcher.add("#chan", true, 'b', masks[i]);
+        }
+        batcher.flush();
+        assertTrue(sent.size() > 1);
+        int params = 0;
+        for (String line : sent) {
+            assertTrue(line.length() <= ModeBatcher.MAX_LINE_LENGTH);
+            final String[] parts = line.split(" ");
+            assertEquals(parts[2].length() - 1, parts.length - 3);
+            for (int i = 3; i < parts.length; i++) {
+                assertEquals(masks[params++], parts[i]);
+            }
+        }
+        assertEquals(masks.length, params);
+    }
+
+    @Test
+    public void testNoWindow() {
+        batcher.add("#chan", "+v", "x");
+        batcher.setWindow(0);
+        assertEquals(Arrays.asList("MODE #chan +v x"), sent);
+        batcher.add("#chan", "-v", "x");
+        assertEquals(Arrays.asList("MODE #chan +v x", "MODE #chan -v x"), sent);
+    }
+}
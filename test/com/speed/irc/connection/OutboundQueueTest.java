@@ -0,0 +1,175 @@
+package com.speed.irc.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the order outbound queues write lines in, and the lines they drop.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class OutboundQueueTest {
+    private final StringWriter sink = new StringWriter();
+    private final BufferedWriter writer = new BufferedWriter(sink);
+    private ServerSocket listener;
+    private Server server;
+    private ScheduledExecutorService executor;
+    private OutboundQueue queue;
+
+    @Before
+    public void setUp() throws IOException {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        server = new Server("127.0.0.1", listener.getLocalPort()) {
+            @Override
+            public BufferedWriter getWriter() {
+                return writer;
+            }
+        };
+        executor = Executors.newSingleThreadScheduledExecutor();
+        queue = new OutboundQueue(server, executor);
+        // a token every 1000 seconds, so lines wait until the tests drain them
+        queue.setLineRate(0.001, 1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        server.quit();
+        listener.close();
+    }
+
+    private List<String> written() throws IOException {
+        writer.flush();
+        final String s = sink.toString();
+        return s.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(s.split("\r\n"));
+    }
+
+    private void add(final String... lines) {
+        for (String line : lines) {
+            queue.add(line + "\r\n");
+        }
+    }
+
+    @Test
+    public void testPriorities() throws IOException {
+        add("PRIVMSG #a :first", "PRIVMSG #a :1", "WHO #a", "MODE #a +o x", "PRIVMSG #b :2", "JOIN #c");
+        // the first line used up the tokens
+        assertEquals(Arrays.asList("PRIVMSG #a :first"), written());
+        assertEquals(5, queue.size());
+        assertEquals(2, queue.size(OutboundQueue.Priority.HIGH));
+        assertEquals(3, queue.getQueuedCount("#A"));
+        queue.drain();
+        assertEquals(Arrays.asList("PRIVMSG #a :first", "MODE #a +o x", "JOIN #c", "PRIVMSG #a :1",
+                "PRIVMSG #b :2", "WHO #a"), written());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testCritical() throws IOException {
+        queue.setLineRate(0.001, 3);
+        add("PONG :irc.test", "NICK bot", "PONG :irc.test");
+        add("PRIVMSG #a :waits");
+        // critical lines skip the queue but their tokens are still taken
+        assertEquals(Arrays.asList("PONG :irc.test", "NICK bot", "PONG :irc.test"), written());
+        assertEquals(1, queue.size());
+        add("PONG :again");
+        assertEquals(Arrays.asList("PONG :irc.test", "NICK bot", "PONG :irc.test", "PONG :again"), written());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testFairness() throws IOException {
+        add("PRIVMSG #z :first");
+        queue.setWeight("#A", 2);
+        assertEquals(2, queue.getWeight("#a"));
+        assertEquals(1, queue.getWeight("#b"));
+        add("PRIVMSG #a :a1", "PRIVMSG #a :a2", "PRIVMSG #A :a3", "PRIVMSG #a :a4", "PRIVMSG #b :b1",
+                "PRIVMSG #b :b2", "PRIVMSG #c :c1", "PRIVMSG #c :c2");
+        assertEquals(Integer.valueOf(4), queue.getQueuedCounts().get("#a"));
+        queue.drain();
+        // each turn #a sends two lines and the others one
+        assertEquals(Arrays.asList("PRIVMSG #z :first", "PRIVMSG #a :a1", "PRIVMSG #a :a2", "PRIVMSG #b :b1",
+                "PRIVMSG #c :c1", "PRIVMSG #A :a3", "PRIVMSG #a :a4", "PRIVMSG #b :b2", "PRIVMSG #c :c2"),
+                written());
+    }
+
+    @Test
+    public void testCoalesce() throws IOException {
+        add("PRIVMSG #z :first", "WHO #a", "WHO #b", "WHO #a", "PRIVMSG #a :hi", "PRIVMSG #a :hi");
+        assertEquals(1, queue.getCoalescedCount());
+        assertEquals(2, queue.size(OutboundQueue.Priority.LOW));
+        // only low priority lines are coalesced
+        assertEquals(2, queue.size(OutboundQueue.Priority.NORMAL));
+        queue.drain();
+        assertEquals(Arrays.asList("PRIVMSG #z :first", "PRIVMSG #a :hi", "PRIVMSG #a :hi", "WHO #a", "WHO #b"),
+                written());
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void testCapacity() throws IOException {
+        assertEquals(OutboundQueue.DEFAULT_LOW_CAPACITY, queue.getCapacity(OutboundQueue.Priority.LOW));
+        assertEquals(0, queue.getCapacity(OutboundQueue.Priority.NORMAL));
+        queue.setCapacity(OutboundQueue.Priority.NORMAL, 2);
+        queue.setCapacity(OutboundQueue.Priority.LOW, 1);
+        add("PRIVMSG #z :first", "PRIVMSG #a :1", "PRIVMSG #b :2", "PRIVMSG #c :3", "WHO #a", "WHO #b",
+                "MODE #a +v x");
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(4, queue.size());
+        queue.drain();
+        assertEquals(Arrays.asList("PRIVMSG #z :first", "MODE #a +v x", "PRIVMSG #a :1", "PRIVMSG #b :2",
+                "WHO #a"), written());
+    }
+
+    @Test
+    public void testRate() throws Exception {
+        queue.setLineRate(50, 1);
+        add("PRIVMSG #a :1", "PRIVMSG #a :2", "PRIVMSG #a :3");
+        assertEquals(1, written().size());
+        // the rest are written as tokens are added
+        for (int i = 0; i < 50 && queue.size() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(Arrays.asList("PRIVMSG #a :1", "PRIVMSG #a :2", "PRIVMSG #a :3"), written());
+    }
+
+    @Test
+    public void testStop() throws IOException {
+        add("PRIVMSG #z :first", "PRIVMSG #a :1");
+        queue.stop();
+        assertEquals(0, queue.size());
+        // nothing is sent once stopped
+        add("PRIVMSG #a :2", "PONG :irc.test");
+        queue.drain();
+        assertEquals(Arrays.asList("PRIVMSG #z :first"), written());
+    }
+}
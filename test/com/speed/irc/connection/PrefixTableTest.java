@@ -0,0 +1,90 @@
+package com.speed.irc.connection;
+
+import com.speed.irc.types.ChannelUser;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the lookups and bitmasks of prefix tables.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class PrefixTableTest {
+    private final PrefixTable table = new PrefixTable("qaohv".toCharArray(), "~&@%+".toCharArray());
+
+    @Test
+    public void testIndexes() {
+        assertEquals(5, table.size());
+        assertEquals(0, table.indexOfLetter('q'));
+        assertEquals(4, table.indexOfLetter('v'));
+        assertEquals(-1, table.indexOfLetter('b'));
+        assertEquals(-1, table.indexOfLetter('\u00e9'));
+        assertEquals(2, table.indexOfSymbol('@'));
+        assertEquals(-1, table.indexOfSymbol('#'));
+        assertEquals('h', table.getLetter(3));
+        assertEquals('%', table.getSymbol(3));
+    }
+
+    @Test
+    public void testParse() {
+        assertEquals(0, table.parse(""));
+        assertEquals(1 << 2 | 1 << 4, table.parse("@+"));
+        assertEquals(1 << 2 | 1 << 4, table.parse("+@"));
+        assertEquals(1 << 0, table.parse("~!"));
+    }
+
+    @Test
+    public void testParseStartOfNick() {
+        final String names = "@+nick ~other";
+        assertEquals(1 << 2 | 1 << 4, table.parse(names, 0, 6));
+        assertEquals(1 << 0, table.parse(names, 7, names.length()));
+        assertEquals(0, table.parse(names, 2, 6));
+        // symbols after the nick starts aren't prefixes
+        assertEquals(1 << 2, table.parse("@n+", 0, 3));
+    }
+
+    @Test
+    public void testToStringHighestFirst() {
+        assertEquals("", table.toString(0));
+        assertEquals("@+", table.toString(table.parse("+@")));
+        assertEquals("~&@%+", table.toString(31));
+        assertSame(table.toString(5), table.toString(5));
+    }
+
+    @Test
+    public void testRights() {
+        assertEquals(ChannelUser.OP_FLAG | ChannelUser.VOICE_FLAG, table.getRights(table.parse("@+")));
+        assertEquals(ChannelUser.OWNER_FLAG, table.getRights(table.parse("~")));
+        assertEquals(0, table.getRights(0));
+        final PrefixTable symbols = new PrefixTable("Yx".toCharArray(), "!@".toCharArray());
+        assertEquals(ChannelUser.OP_FLAG, symbols.getRights(symbols.parse("@")));
+        assertEquals(0, symbols.getRights(symbols.parse("!")));
+    }
+
+    @Test
+    public void testDefault() {
+        assertEquals(0, PrefixTable.DEFAULT.indexOfLetter('o'));
+        assertEquals(1, PrefixTable.DEFAULT.indexOfSymbol('+'));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMismatchedPrefixes() {
+        new PrefixTable("ov".toCharArray(), "@".toCharArray());
+    }
+}
@@ -0,0 +1,127 @@
+package com.speed.irc.types;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the list and matching index of mask lists.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class MaskListTest {
+
+    private static ServerUser user(final String nick, final String user, final String host) {
+        return new ServerUser(nick, host, user, null);
+    }
+
+    private static MaskList list(final String... masks) {
+        final MaskList list = new MaskList();
+        for (String mask : masks) {
+            list.add(new Mask(mask));
+        }
+        return list;
+    }
+
+    @Test
+    public void testMatchesIndexedMasks() {
+        final MaskList list = list("*!*@host.example.com", "*!*@*.example.org", "bad*!*@*", "*!baduser@*");
+        assertTrue(list.matches(user("nick", "u", "HOST.example.com")));
+        assertTrue(list.matches(user("nick", "u", "irc.deep.example.org")));
+        assertFalse(list.matches(user("nick", "u", "example.org")));
+        assertTrue(list.matches(user("BadNick", "u", "a.b")));
+        assertTrue(list.matches(user("nick", "baduser", "a.b")));
+        assertFalse(list.matches(user("nick", "u", "other.example.com")));
+    }
+
+    @Test
+    public void testGetMatches() {
+        final MaskList list = list("*!*@host.example.com", "*!*@*.example.com", "n*!*@*", "x!*@*");
+        final List<Mask> matches = list.getMatches(user("nick", "u", "host.example.com"));
+        assertEquals(3, matches.size());
+        assertFalse(matches.contains(new Mask("x!*@*")));
+    }
+
+    @Test
+    public void testGetMatchingUsers() {
+        final MaskList list = list("*!*@*.spam.example");
+        final ServerUser spammer = user("s", "u", "a.spam.example");
+        final List<ServerUser> users = Arrays.asList(user("a", "u", "ok.example"), spammer);
+        assertEquals(Arrays.asList(spammer), list.getMatchingUsers(users));
+    }
+
+    @Test
+    public void testRemoveUpdatesIndex() {
+        final MaskList list = list("*!*@host.example.com", "*!*@*.example.org", "bad*!*@*");
+        assertTrue(list.remove(new Mask("*!*@host.example.com")));
+        assertTrue(list.remove(new Mask("*!*@*.example.org")));
+        assertTrue(list.remove(new Mask("bad*!*@*")));
+        assertFalse(list.remove(new Mask("bad*!*@*")));
+        assertTrue(list.isEmpty());
+        assertFalse(list.matches(user("badnick", "u", "host.example.com")));
+        assertFalse(list.matches(user("nick", "u", "a.example.org")));
+    }
+
+    @Test
+    public void testListOperations() {
+        final MaskList list = list("a!*@*", "b!*@*");
+        list.add(1, new Mask("c!*@*"));
+        assertEquals(Arrays.asList(new Mask("a!*@*"), new Mask("c!*@*"), new Mask("b!*@*")), list);
+        assertEquals(new Mask("c!*@*"), list.get(1));
+        assertEquals(1, list.indexOf(new Mask("c!*@*")));
+        assertEquals(new Mask("c!*@*"), list.set(1, new Mask("d!*@*")));
+        assertFalse(list.contains(new Mask("c!*@*")));
+        assertTrue(list.matches(user("d", "u", "h")));
+        assertFalse(list.matches(user("c", "u", "h")));
+        assertEquals(new Mask("a!*@*"), list.remove(0));
+        assertFalse(list.matches(user("a", "u", "h")));
+        list.clear();
+        assertEquals(0, list.size());
+        assertFalse(list.matches(user("b", "u", "h")));
+    }
+
+    @Test
+    public void testDuplicates() {
+        final MaskList list = list("a!*@*");
+        assertFalse(list.addIfAbsent(new Mask("a!*@*")));
+        assertTrue(list.add(new Mask("a!*@*")));
+        assertEquals(2, list.size());
+        assertTrue(list.remove(new Mask("a!*@*")));
+        assertTrue(list.contains(new Mask("a!*@*")));
+        assertTrue(list.matches(user("a", "u", "h")));
+        assertTrue(list.remove(new Mask("a!*@*")));
+        assertFalse(list.contains(new Mask("a!*@*")));
+        assertFalse(list.matches(user("a", "u", "h")));
+    }
+
+    @Test
+    public void testIteratorIsSnapshot() {
+        final MaskList list = list("a!*@*", "b!*@*");
+        final Iterator<Mask> it = list.iterator();
+        list.add(new Mask("c!*@*"));
+        assertEquals(new Mask("a!*@*"), it.next());
+        it.remove();
+        assertEquals(new Mask("b!*@*"), it.next());
+        assertFalse(it.hasNext());
+        assertEquals(Arrays.asList(new Mask("b!*@*"), new Mask("c!*@*")), list);
+    }
+}
@@ -0,0 +1,92 @@
+package com.speed.irc.types;
+
+import com.speed.irc.util.CaseMapping;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the matching of masks against users.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class MaskTest {
+
+    @Test
+    public void testParts() {
+        final Mask mask = new Mask("nick!user@host.example");
+        assertEquals("nick", mask.getNickMask());
+        assertEquals("user", mask.getUserMask());
+        assertEquals("host.example", mask.getHostMask());
+        assertEquals(new Mask("nick", "user", "host.example"), mask);
+    }
+
+    @Test
+    public void testWildcards() {
+        final CaseMapping m = CaseMapping.RFC1459;
+        assertTrue(Mask.matches("*", "anything", m));
+        assertTrue(Mask.matches("*", "", m));
+        assertTrue(Mask.matches("a*c", "abbbc", m));
+        assertTrue(Mask.matches("a*c", "ac", m));
+        assertFalse(Mask.matches("a*c", "abcd", m));
+        assertTrue(Mask.matches("a?c", "abc", m));
+        assertFalse(Mask.matches("a?c", "ac", m));
+        assertTrue(Mask.matches("*.example.com", "irc.example.com", m));
+        assertFalse(Mask.matches("*.example.com", "example.com", m));
+        assertTrue(Mask.matches("*a*b*", "xxaxxbxx", m));
+        assertTrue(Mask.matches("a**", "a", m));
+        assertFalse(Mask.matches("a", null, m));
+        assertTrue(Mask.matches("*", null, m));
+    }
+
+    @Test
+    public void testCaseMapping() {
+        assertTrue(Mask.matches("Nick[1]", "nick{1}", CaseMapping.RFC1459));
+        assertFalse(Mask.matches("Nick[1]", "nick{1}", CaseMapping.ASCII));
+        assertTrue(Mask.matches("Nick[1]", "NICK[1]", CaseMapping.ASCII));
+    }
+
+    @Test
+    public void testMatchesUser() {
+        final Mask mask = new Mask("*!*@*.example.com");
+        assertTrue(mask.matches(new ServerUser("nick", "irc.example.com", "user", null)));
+        assertFalse(mask.matches(new ServerUser("nick", "example.org", "user", null)));
+        assertTrue(new Mask("bad*!*@*").matches(new ServerUser("BadGuy", "a.b", "u", null)));
+        assertTrue(new Mask("*!~u@*").matches("nick", "~u", "h", CaseMapping.RFC1459));
+        assertFalse(new Mask("*!~u@*").matches("nick", "u", "h", CaseMapping.RFC1459));
+    }
+
+    @Test
+    public void testMasksFromServers() {
+        final Mask single = new Mask("*!*@192.168.?.*");
+        assertTrue(single.matches("nick", "u", "192.168.1.20", CaseMapping.RFC1459));
+        assertFalse(single.matches("nick", "u", "192.168.10.20", CaseMapping.RFC1459));
+        final Mask nick = new Mask("n?ck!*@*");
+        assertEquals("n?ck", nick.getNickMask());
+        assertTrue(nick.matches("NICK", "u", "h", CaseMapping.RFC1459));
+        assertFalse(nick.matches("nk", "u", "h", CaseMapping.RFC1459));
+        final Mask cloak = new Mask("*!*@user/foo");
+        assertEquals("user/foo", cloak.getHostMask());
+        assertTrue(cloak.matches(new ServerUser("foo", "user/foo", "~foo", null)));
+        assertFalse(cloak.matches(new ServerUser("foo", "user/bar", "~foo", null)));
+        assertTrue(Mask.verify("*!*@gateway/web/irccloud.com/x-*"));
+        assertFalse(Mask.verify("$a:account"));
+        assertFalse(Mask.verify("nick!user"));
+        assertFalse(Mask.verify("a!b@c d"));
+    }
+}
@@ -0,0 +1,89 @@
+package com.speed.irc.types;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the bitset and parameters of mode lists.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class ModeListTest {
+
+    @Test
+    public void testParseModes() {
+        final ModeList list = new ModeList(null, "+ntz");
+        assertTrue(list.contains('n'));
+        assertTrue(list.contains('z'));
+        assertFalse(list.contains('m'));
+        list.parse("-n+mM");
+        assertFalse(list.contains('n'));
+        assertTrue(list.contains('m'));
+        assertTrue(list.contains('M'));
+        assertEquals("+Mmtz", list.parse());
+    }
+
+    @Test
+    public void testParameters() {
+        final ModeList list = new ModeList(null, "");
+        list.apply(true, 'k', "key");
+        list.apply(true, 'l', "10");
+        assertEquals("key", list.getParameter('k'));
+        assertEquals("10", list.getParameter('l'));
+        list.apply(true, 'k', "other");
+        assertEquals("other", list.getParameter('k'));
+        list.apply(false, 'k', null);
+        assertFalse(list.contains('k'));
+        assertNull(list.getParameter('k'));
+        assertEquals("10", list.getParameter('l'));
+    }
+
+    @Test
+    public void testIgnoresNonAscii() {
+        final ModeList list = new ModeList(null, "+\u00e9");
+        assertFalse(list.contains('\u00e9'));
+        assertEquals("", list.parse());
+    }
+
+    @Test
+    public void testConcurrentChanges() throws InterruptedException {
+        final ModeList list = new ModeList(null, "");
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final char mode = (char) ('a' + t);
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        list.apply(true, mode, String.valueOf(i));
+                        list.apply(false, mode, null);
+                    }
+                    list.apply(true, mode, "done");
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("+abcd", list.parse());
+        for (int t = 0; t < threads.length; t++) {
+            assertEquals("done", list.getParameter((char) ('a' + t)));
+        }
+    }
+}
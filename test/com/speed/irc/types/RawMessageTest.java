@@ -0,0 +1,126 @@
+package com.speed.irc.types;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the tokenizing of raw messages.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class RawMessageTest {
+
+    private static RawMessage parse(final String line) {
+        return new RawMessage(line, null);
+    }
+
+    @Test
+    public void testPrefixCommandAndParams() {
+        final RawMessage m = parse(":nick!user@host.example PRIVMSG #chan :hello there");
+        assertEquals("nick!user@host.example", m.getSender());
+        assertEquals("nick", m.getPrefixNick());
+        assertEquals("user", m.getPrefixUser());
+        assertEquals("host.example", m.getPrefixHost());
+        assertTrue(m.isUserPrefix());
+        assertEquals("PRIVMSG", m.getCommand());
+        assertTrue(m.isCommand("privmsg"));
+        assertEquals(-1, m.getNumeric());
+        assertEquals(2, m.getParamCount());
+        assertEquals("#chan", m.getTarget());
+        assertEquals("hello there", m.getTrailing());
+        assertTrue(m.hasTrailing());
+        assertEquals("nick!user@host.example PRIVMSG #chan :hello there", m.getRaw());
+    }
+
+    @Test
+    public void testServerPrefixAndNumeric() {
+        final RawMessage m = parse(":irc.example 005 bot CHANTYPES=# PREFIX=(ov)@+ :are supported");
+        assertEquals("irc.example", m.getSender());
+        assertEquals("irc.example", m.getPrefixNick());
+        assertNull(m.getPrefixUser());
+        assertNull(m.getPrefixHost());
+        assertFalse(m.isUserPrefix());
+        assertEquals(5, m.getNumeric());
+        assertEquals(4, m.getParamCount());
+        assertEquals("PREFIX=(ov)@+", m.getParam(2));
+        assertTrue(m.paramEquals(1, "CHANTYPES=#"));
+        assertFalse(m.paramEquals(1, "CHANTYPES"));
+        assertEquals('(', m.paramCharAt(2, 7));
+        assertEquals(0, m.paramCharAt(2, 100));
+    }
+
+    @Test
+    public void testNoPrefix() {
+        final RawMessage m = parse("PING :irc.example");
+        assertNull(m.getSender());
+        assertNull(m.getPrefixNick());
+        assertEquals("PING", m.getCommand());
+        assertEquals("irc.example", m.getTrailing());
+        assertEquals("PING :irc.example", m.getRaw());
+    }
+
+    @Test
+    public void testParamsWithoutTrailing() {
+        final RawMessage m = parse(":a!b@c MODE  #chan  +o   nick");
+        assertEquals(3, m.getParamCount());
+        assertEquals("#chan", m.getParam(0));
+        assertEquals("+o", m.getParam(1));
+        assertEquals("nick", m.getTrailing());
+        assertFalse(m.hasTrailing());
+    }
+
+    @Test
+    public void testEmptyTrailing() {
+        final RawMessage m = parse(":a!b@c PRIVMSG #chan :");
+        assertEquals(2, m.getParamCount());
+        assertEquals("", m.getTrailing());
+        assertTrue(m.hasTrailing());
+    }
+
+    @Test
+    public void testTrailingKeepsColonsAndSpaces() {
+        final RawMessage m = parse(":a!b@c PRIVMSG #chan ::) see  you");
+        assertEquals(":) see  you", m.getTrailing());
+    }
+
+    @Test
+    public void testTags() {
+        final RawMessage m = parse("@time=2020-01-01T00:00:00Z;msgid=a\\sb\\:c;flag :a!b@c PRIVMSG #chan :hi");
+        assertEquals("time=2020-01-01T00:00:00Z;msgid=a\\sb\\:c;flag", m.getTags());
+        assertEquals("2020-01-01T00:00:00Z", m.getTag("time"));
+        assertEquals("a b;c", m.getTag("msgid"));
+        assertEquals("", m.getTag("flag"));
+        assertNull(m.getTag("fla"));
+        assertNull(m.getTag("missing"));
+        assertEquals("a", m.getPrefixNick());
+        assertEquals("a!b@c PRIVMSG #chan :hi", m.getRaw());
+        assertEquals("@time=2020-01-01T00:00:00Z;msgid=a\\sb\\:c;flag :a!b@c PRIVMSG #chan :hi", m.getLine());
+    }
+
+    @Test
+    public void testNoTags() {
+        assertNull(parse("PING :x").getTags());
+        assertNull(parse("PING :x").getTag("time"));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testMissingParam() {
+        parse("PING :x").getParam(1);
+    }
+}
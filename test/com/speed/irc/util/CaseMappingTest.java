@@ -0,0 +1,86 @@
+package com.speed.irc.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the folding and comparing of names with each casemapping.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class CaseMappingTest {
+
+    @Test
+    public void testForName() {
+        assertSame(CaseMapping.ASCII, CaseMapping.forName("ascii"));
+        assertSame(CaseMapping.RFC1459, CaseMapping.forName("rfc1459"));
+        assertSame(CaseMapping.STRICT_RFC1459, CaseMapping.forName("STRICT-RFC1459"));
+        assertSame(CaseMapping.RFC1459, CaseMapping.forName(null));
+        assertSame(CaseMapping.RFC1459, CaseMapping.forName("rfc7613"));
+    }
+
+    @Test
+    public void testFoldAscii() {
+        assertEquals("nick[]\\~^", CaseMapping.ASCII.fold("NICK[]\\~^"));
+    }
+
+    @Test
+    public void testFoldRfc1459() {
+        assertEquals("nick{}||~~", CaseMapping.RFC1459.fold("NICK[]\\|^~"));
+    }
+
+    @Test
+    public void testFoldStrictRfc1459() {
+        assertEquals("nick{}||^~", CaseMapping.STRICT_RFC1459.fold("NICK[]\\|^~"));
+    }
+
+    @Test
+    public void testFoldReturnsSameStringWhenFolded() {
+        final String s = "#channel{}";
+        assertSame(s, CaseMapping.RFC1459.fold(s));
+    }
+
+    @Test
+    public void testEqualsIgnoreCase() {
+        assertTrue(CaseMapping.RFC1459.equalsIgnoreCase("Nick[a]", "nick{A}"));
+        assertFalse(CaseMapping.ASCII.equalsIgnoreCase("Nick[a]", "nick{A}"));
+        assertTrue(CaseMapping.RFC1459.equalsIgnoreCase("a^", "A~"));
+        assertFalse(CaseMapping.STRICT_RFC1459.equalsIgnoreCase("a^", "A~"));
+        assertFalse(CaseMapping.RFC1459.equalsIgnoreCase("nick", "nick_"));
+        assertFalse(CaseMapping.RFC1459.equalsIgnoreCase("nick", null));
+        assertTrue(CaseMapping.RFC1459.equalsIgnoreCase(null, null));
+    }
+
+    @Test
+    public void testCompare() {
+        assertEquals(0, CaseMapping.RFC1459.compare("[Nick]", "{nick}"));
+        assertTrue(CaseMapping.RFC1459.compare("abc", "ABD") < 0);
+        assertTrue(CaseMapping.RFC1459.compare("abc", "ab") > 0);
+        assertTrue(CaseMapping.ASCII.compare("[", "{") < 0);
+    }
+
+    @Test
+    public void testHashMatchesFoldedHash() {
+        for (CaseMapping mapping : CaseMapping.values()) {
+            for (String s : new String[]{"", "Nick", "[Away]", "a\\B^", "#Chan~"}) {
+                assertEquals(mapping.fold(s).hashCode(), mapping.hash(s));
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.speed.irc.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the sharing of equal strings by a string pool.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class StringPoolTest {
+
+    @Test
+    public void testInternSharesEqualStrings() {
+        final StringPool pool = new StringPool();
+        final String first = new String("host.example.com");
+        final String second = new String("host.example.com");
+        assertNotSame(first, second);
+        assertSame(first, pool.intern(first));
+        assertSame(first, pool.intern(second));
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void testInternNull() {
+        final StringPool pool = new StringPool();
+        assertNull(pool.intern(null));
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testDifferentStrings() {
+        final StringPool pool = new StringPool();
+        final String a = pool.intern("a.example");
+        final String b = pool.intern("b.example");
+        assertNotSame(a, b);
+        assertEquals(2, pool.size());
+    }
+}
@@ -0,0 +1,87 @@
+package com.speed.irc.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the limits of token buckets.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class TokenBucketTest {
+
+    @Test
+    public void testBurst() {
+        final TokenBucket bucket = new TokenBucket(0.001, 3);
+        assertTrue(bucket.isLimited());
+        assertTrue(bucket.tryAcquire(1));
+        assertTrue(bucket.tryAcquire(2));
+        assertFalse(bucket.tryAcquire(1));
+        assertTrue(bucket.getDelay(1, TimeUnit.SECONDS) > 900);
+    }
+
+    @Test
+    public void testRefill() throws InterruptedException {
+        final TokenBucket bucket = new TokenBucket(50, 1);
+        assertTrue(bucket.tryAcquire(1));
+        assertFalse(bucket.tryAcquire(1));
+        final long delay = bucket.getDelay(1, TimeUnit.MILLISECONDS);
+        assertTrue(delay > 0 && delay <= 20);
+        Thread.sleep(60);
+        // the bucket never holds more than its capacity
+        assertTrue(bucket.tryAcquire(1));
+        assertFalse(bucket.tryAcquire(1));
+    }
+
+    @Test
+    public void testLargeCost() {
+        final TokenBucket bucket = new TokenBucket(0.001, 2);
+        // a cost over the capacity only needs a full bucket
+        assertEquals(0, bucket.getDelay(5, TimeUnit.NANOSECONDS));
+        assertTrue(bucket.tryAcquire(5));
+        assertFalse(bucket.tryAcquire(0.5));
+    }
+
+    @Test
+    public void testDebt() {
+        final TokenBucket bucket = new TokenBucket(0.001, 2);
+        bucket.acquire(4);
+        assertFalse(bucket.tryAcquire(1));
+        assertTrue(bucket.getDelay(1, TimeUnit.SECONDS) > 2000);
+        bucket.setRate(0.001, 2);
+        assertTrue(bucket.tryAcquire(2));
+    }
+
+    @Test
+    public void testUnlimited() {
+        final TokenBucket bucket = new TokenBucket(0, 0);
+        assertFalse(bucket.isLimited());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(bucket.tryAcquire(10));
+        }
+        bucket.acquire(100);
+        assertEquals(0, bucket.getDelay(1, TimeUnit.NANOSECONDS));
+        bucket.setRate(1, 4);
+        assertTrue(bucket.isLimited());
+        assertEquals(1, bucket.getRate(), 0);
+        assertEquals(4, bucket.getCapacity(), 0);
+    }
+}